@@ -3,9 +3,24 @@ import java.awt.event.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 
 public class Game {
@@ -14,21 +29,86 @@ public class Game {
 
 	private final JFrame frame;
 	private final JLabel display;
+	private final boolean headless;
+	private final Random random;  // Source of all randomness of the game, so that games can be replayed
+	private final boolean replayable;  // Started from a seed to record or replay input, never saved
+	private boolean quit;
+	private long renderTime;  // Nanoseconds spent drawing so far
 
 	private String currentImageName, lastImageName;
 	private BufferedImage image;
 	private boolean[][] occupied;
+	private FreeRegions regions;
+	private FreeRuns runs;
 	private long points;
 	private int trash;
 	private Brick[] waiting;
 	private int highlightBrick, selectedBrick;
+	private long hash;  // Zobrist hash of the covered tiles, the hand, the selection and the bin
+	private long boardVersion;  // Increased whenever a tile is filled or freed
+	private boolean snap = Settings.getInt("snap", 0) != 0;
+	private final SnapField[] snapFields = new SnapField[4];
+	private static final int SNAP_RADIUS = 2;  // Tiles around the board within which the held brick snaps
 	private Point mousePos;
 
-	private Shape[] waitingRects;
 	private Rectangle trashRect;
+	// Reused while drawing and handling the mouse, so that moving the held brick allocates nothing
+	private BufferedImage frameImage, layer;  // The window contents, and the background and board beneath the bricks
+	private Graphics2D frameGraphics;
+	private long layerVersion;
+	private boolean[][] layerBoard;
+	private BufferedImage layerImage;
+	private TileAtlas layerAtlas;
+	private boolean layerResizing;
+	private byte[] layerCells;
+	private final Rectangle boardRect = new Rectangle(), trashBox = new Rectangle(), scratchRect = new Rectangle();
+	private final Point target = new Point();
+	// The waiting bricks in a scrollable grid of cells; each slot is laid out again only when its brick changes
+	private final Rectangle handBox = new Rectangle();  // The visible part of the grid
+	private Brick[] handBricks = new Brick[0];
+	private int[] handRotations, handX, handY, handTile;  // Offset of each brick in its cell, and the size of its tiles
+	private int handCols, handCell, handRows, handVisible, handFirst;  // handFirst is the first visible row
+	private int handW = -1, handH = -1, handBoardTile = -1;
+	private int fontUnit;
+	private Font trashFont, pointsFont, estimateFont;
+	private final Label trashLabel = new Label(), pointsLabel = new Label(), clearLabel = new Label();
+	private Label[] expectedLabels = new Label[0];
+	// The menu and messages are drawn into images of their own, which are only drawn again when they change
+	private final Rectangle overlayRect = new Rectangle();
+	private final Overlay messageOverlay = new Overlay(7);
+	private Message overlayMessage;
+	private String overlayText;
+	private final Label titleLabel = new Label(), bodyLabel = new Label();
+	private int messageUnit;
+	private Font titleFont, bodyFont;
+	private static final Color SHADOW = new Color(0x7F000000, true);
+	private static final Color PANEL = new Color(0x1F000000, true);
+	private static final Color TRASH = new Color(0x111111);
+	private static final Color TRASH_BORDER = new Color(0xCCCCCC);
+	private static final Color TEXT = new Color(0x222222);
+	private TileAtlas atlas;
+	private TileAtlas[] handAtlases = new TileAtlas[0];  // For bricks in the hand drawn smaller than the board's tiles
+	private BufferedImage background, backgroundSource;
+	private boolean resizing;
+	private javax.swing.Timer resizeTimer;
+	private final History history = new History(Settings.getInt("undo", 100));
+	private Estimator estimator;
 
 	private BrickSet brickset;
 	private Menu menu;
+	private String slot;  // The save slot this game was continued from and is saved to again, null for new games
+
+	// In solvable mode, the bricks of a hidden tiling of the current board that were not yet dealt
+	private boolean solvable;
+	private ArrayList<BrickDescription> undealt;
+	private Future<Tiling> pendingTiling;
+	private String pendingTilingFor;  // The brickset and board size the pending tiling is generated for
+	private static final Set<String> untileable = ConcurrentHashMap.newKeySet();  // Where no tiling was found
+	private static final ExecutorService tilingGenerator = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Tiling generator");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private static final Highscore[] highscores = new Highscore[10];
 	public static class Highscore {
@@ -59,17 +139,27 @@ public class Game {
 	private Message message;
 
 	public static class BrickSet {
+		// Bricksets never change once loaded, so all games share one instance per brickset
+		private static final Map<String, BrickSet> loaded = new ConcurrentHashMap<>();
+		public static BrickSet named(String n) {
+			return loaded.computeIfAbsent(n, BrickSet::new);
+		}
 		public BrickDescription random() {
 			return descrs[(int)(descrs.length * Math.random())];
 		}
+		public BrickDescription random(Random r) {
+			return descrs[r.nextInt(descrs.length)];
+		}
+		// Bricks are numbered in the order they are defined in, so their ids are their indices
 		public BrickDescription get(int id) {
-			for (BrickDescription d : descrs)
-				if (d.id == id)
-					return d;
-			return null;
+			return id >= 0 && id < descrs.length ? descrs[id] : null;
+		}
+		public int smallest() {
+			return smallest;
 		}
 		public final String name;
 		private final BrickDescription[] descrs;
+		private final int smallest;
 		private static class MutableBrickDescription {
 			public ArrayList<Point> occupies;
 			public Color colour;
@@ -96,33 +186,39 @@ public class Game {
 				 *   · col <name> <rgb>   – set the given brick's color to the given RGB value
 				 *   · #                  – comment
 				 */
+				String[] str = new String[4];
 				for (String s : lines) {
-					while (s.contains("  "))
-						s = s.replaceAll("  ", " ");
 					s = s.trim();
 					if (s.isEmpty() || s.startsWith("#")) {
 						continue;
 					}
-					String[] str = s.split(" ");
+					int words = split(s, str);
+					MutableBrickDescription descr = words > 1 ? list.get(str[1]) : null;
 					switch (str[0]) {
 						case "new":
-							if (list.containsKey(str[1]))
+							if (words < 2)
+								throw new Exception("Malformed line \"" + s + "\"!");
+							if (descr != null)
 								throw new Exception("Attempt to add already known brick \"" + str[1] + "\"!");
 							else
 								list.put(str[1], new MutableBrickDescription());
 							break;
 						case "col":
-							if (list.containsKey(str[1])) {
-								// The cast-conversion Long–>long–>int is needed because RGB values
+							if (words < 3)
+								throw new Exception("Malformed line \"" + s + "\"!");
+							if (descr != null) {
+								// The conversion long–>int is needed because RGB values
 								// are specified bitwise, so they may cause overflows
-								list.get(str[1]).colour = new Color((int)(long)Long.valueOf(str[2], 16));
+								descr.colour = new Color((int)Long.parseLong(str[2], 16));
 							}
 							else
 								throw new Exception("Attempt to set colour for unknown brick \"" + str[1] + "\"!");
 							break;
 						case "add":
-							if (list.containsKey(str[1]))
-								list.get(str[1]).occupies.add(new Point(Integer.valueOf(str[2]), Integer.valueOf(str[3])));
+							if (words < 4)
+								throw new Exception("Malformed line \"" + s + "\"!");
+							if (descr != null)
+								descr.occupies.add(new Point(Integer.parseInt(str[2]), Integer.parseInt(str[3])));
 							else
 								throw new Exception("Attempt to add location for unknown brick \"" + str[1] + "\"!");
 							break;
@@ -136,20 +232,61 @@ public class Game {
 			}
 			descrs = new BrickDescription[list.size()];
 			int i = 0;
+			int min = Integer.MAX_VALUE;
 			for (MutableBrickDescription descr : list.values()) {
 				descrs[i] = descr.create(i);
+				min = Math.min(min, descrs[i].size());
 				i++;
 			}
+			smallest = min;
+		}
+		// Splits a line into the words separated by spaces, of which only as many as fit are kept, and the rest
+		// of the array is cleared; much faster than a regular expression for the huge generated bricksets
+		private static int split(String s, String[] words) {
+			int n = 0;
+			int i = 0;
+			while (n < words.length) {
+				while (i < s.length() && s.charAt(i) == ' ')
+					i++;
+				if (i == s.length())
+					break;
+				int end = s.indexOf(' ', i);
+				if (end < 0)
+					end = s.length();
+				words[n++] = s.substring(i, end);
+				i = end;
+			}
+			Arrays.fill(words, n, words.length, null);
+			return n;
 		}
 	}
 	public static class BrickDescription {
 		private final Point[] occupies;
 		public final Color colour;
 		public final int id;
+		private final int[][] runs;
 		private BrickDescription(int i, Color c, Point ... p) {
 			id = i;
 			occupies = p;
 			colour = c;
+			runs = new int[4][];
+			for (int rot = 0; rot < 4; rot++) {
+				Point[] pp = occupies(rot).clone();
+				Arrays.sort(pp, (a, b) -> a.y != b.y ? a.y - b.y : a.x - b.x);
+				int[] r = new int[pp.length * 3];
+				int n = 0;
+				for (int k = 0; k < pp.length; k++) {
+					if (n > 0 && r[n - 2] == pp[k].y && r[n - 3] + r[n - 1] == pp[k].x) {
+						r[n - 1]++;
+					}
+					else {
+						r[n++] = pp[k].x;
+						r[n++] = pp[k].y;
+						r[n++] = 1;
+					}
+				}
+				runs[rot] = Arrays.copyOf(r, n);
+			}
 		}
 		public Point[] occupies(int rot) {
 			Point[] result = new Point[occupies.length];
@@ -184,30 +321,2052 @@ public class Game {
 				minH = Math.min(minH, p.y);
 				maxH = Math.max(maxH, p.y);
 			}
-			return new Dimension(1 + maxW - minW, 1 + maxH - minH);
+			return new Dimension(1 + maxW - minW, 1 + maxH - minH);
+		}
+		public int size() {
+			return occupies.length;
+		}
+		// The brick's tiles in the given rotation as horizontal runs, stored as (x, y, length) triples
+		public int[] runs(int rot) {
+			return runs[rot];
+		}
+		// Coordinates of the i-th tile in the given rotation, without allocating
+		public int x(int i, int rot) {
+			switch (rot) {
+				case 0: return occupies[i].x;
+				case 1: return -occupies[i].y;
+				case 2: return -occupies[i].x;
+				default: return occupies[i].y;
+			}
+		}
+		public int y(int i, int rot) {
+			switch (rot) {
+				case 0: return occupies[i].y;
+				case 1: return occupies[i].x;
+				case 2: return -occupies[i].y;
+				default: return -occupies[i].x;
+			}
+		}
+	}
+	public static class Brick {
+		public final BrickDescription descr;
+		public int rotation;
+		/* Rotation:
+		 * 0 – None
+		 * 1 – Clockwise
+		 * 2 – Double
+		 * 3 – Counterclockwise
+		 */
+		public Brick(BrickDescription d, int rot) {
+			descr = d;
+			rotation = rot;
+		}
+		public Brick(BrickDescription d) {
+			this(d, (int)(4 * Math.random()));
+		}
+		public Point[] occupies() {
+			return descr.occupies(rotation);
+		}
+	}
+
+	/* Keys for Zobrist hashing of game states: the hash of a state is the XOR of the keys of all its
+	 * features, so it can be updated by XORing out a feature's old key and XORing in the new one.
+	 * Rather than from tables of random numbers, keys are derived from their feature with the
+	 * SplitMix64 finalizer, so they are equal in every run and for every board size, as is needed
+	 * for hashes stored in save files.
+	 */
+	public static class Zobrist {
+		public static long tile(int x, int y) {
+			return mix(1, ((long)x << 32) | (y & 0xFFFFFFFFL));
+		}
+		public static long brick(int slot, Brick b) {
+			return b == null ? mix(2, slot) : mix(3, ((long)slot << 32) | (b.descr.id << 2) | b.rotation);
+		}
+		public static long selected(int slot) {
+			return mix(4, slot);
+		}
+		public static long trash(int t) {
+			return mix(5, t);
+		}
+		public static long points(long p) {
+			return mix(6, p);
+		}
+		private static long mix(long kind, long value) {
+			long z = (kind << 56) ^ value;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+	}
+
+	/* Optional settings, read from data/settings. Each line holds a key and a value:
+	 *   · undo <n> – how many moves can be undone (default 100, 0 disables undo)
+	 *   · snap <0|1> – whether the held brick snaps to the nearest legal placement (default 0, toggled with S)
+	 *   · cpus <n> – how many threads may estimate the chances of completing the board (default half the
+	 *     processors, 0 disables the estimate)
+	 */
+	public static class Settings {
+		private static final Map<String, String> values = new HashMap<>();
+		static {
+			File f = new File("data/settings");
+			if (f.isFile()) {
+				try {
+					for (String s : Files.readAllLines(f.toPath())) {
+						s = s.trim();
+						if (s.isEmpty() || s.startsWith("#"))
+							continue;
+						String[] str = s.split(" +", 2);
+						values.put(str[0], str.length > 1 ? str[1] : "");
+					}
+				}
+				catch (Exception e) {
+					System.out.println("Unable to read settings: " + e);
+				}
+			}
+		}
+		public static int getInt(String key, int def) {
+			try {
+				return values.containsKey(key) ? Integer.valueOf(values.get(key)) : def;
+			}
+			catch (NumberFormatException e) {
+				System.out.println("Invalid value for setting \"" + key + "\": " + values.get(key));
+				return def;
+			}
+		}
+	}
+
+	/* Saved games, each in its own numbered slot in data/saves. The index file lists every slot with its board
+	 * size, brickset, points and the time it was saved, and a small picture of the board is kept next to each
+	 * save, so that the menu never needs to read the saves themselves or decode the photos.
+	 */
+	public static class Saves {
+		public static final File DIR = new File("data/saves");
+		private static final File INDEX = new File(DIR, "index");
+		private static final int THUMBNAIL = 120;  // Length of the longer side of the thumbnails in pixels
+
+		// Thumbnails are rendered in the background, so that saving does not hold up the game
+		private static final ExecutorService renderer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Thumbnail renderer");
+			t.setDaemon(true);
+			return t;
+		});
+		private static final Map<String, BufferedImage> thumbnails = new HashMap<>();  // null if there is none
+
+		public static class Slot {
+			public final String name;
+			public final long time;
+			public final int width, height;
+			public final long points;
+			public final String brickset;
+
+			public Slot(String n, long t, int w, int h, long p, String bs) {
+				name = n;
+				time = t;
+				width = w;
+				height = h;
+				points = p;
+				brickset = bs;
+			}
+			// The brickset comes last, as its name may contain spaces
+			private static Slot parse(String line) {
+				String[] s = line.split(" ", 6);
+				return new Slot(s[0], Long.valueOf(s[1]), Integer.valueOf(s[2]), Integer.valueOf(s[3]),
+						Long.valueOf(s[4]), s[5]);
+			}
+			public String toString() {
+				return name + " " + time + " " + width + " " + height + " " + points + " " + brickset;
+			}
+		}
+
+		// All slots, the most recently saved first
+		public static synchronized ArrayList<Slot> list() {
+			ArrayList<Slot> slots = new ArrayList<>();
+			if (!INDEX.isFile())
+				return slots;
+			try {
+				for (String line : Files.readAllLines(INDEX.toPath(), StandardCharsets.UTF_8))
+					if (!line.isEmpty())
+						slots.add(Slot.parse(line));
+			}
+			catch (Exception e) {
+				System.out.println("Unable to read the list of saved games: " + e);
+			}
+			slots.sort((a, b) -> Long.compare(b.time, a.time));
+			return slots;
+		}
+		public static File file(String name) {
+			return new File(DIR, name);
+		}
+		// The lowest number that no slot uses yet
+		public static synchronized String newName() {
+			HashSet<String> used = new HashSet<>();
+			for (Slot s : list())
+				used.add(s.name);
+			int i = 1;
+			while (used.contains(String.valueOf(i)) || file(String.valueOf(i)).exists())
+				i++;
+			return String.valueOf(i);
+		}
+
+		// Adds the slot to the index, replacing an earlier entry of the same name
+		public static synchronized void put(Slot slot) {
+			ArrayList<Slot> slots = list();
+			slots.removeIf(s -> s.name.equals(slot.name));
+			slots.add(0, slot);
+			write(slots);
+		}
+		// Removes the slot from the index and deletes its files
+		public static void remove(String name) {
+			// A thumbnail that is still being rendered would otherwise be written after it was deleted
+			flush();
+			synchronized (Saves.class) {
+				ArrayList<Slot> slots = list();
+				slots.removeIf(s -> s.name.equals(name));
+				write(slots);
+				file(name).delete();
+				new File(DIR, name + ".png").delete();
+				thumbnails.remove(name);
+			}
+		}
+		private static void write(ArrayList<Slot> slots) {
+			DIR.mkdirs();
+			File tmp = new File(DIR, "index.tmp");
+			try {
+				try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+					for (Slot s : slots)
+						w.println(s);
+				}
+				Files.move(tmp.toPath(), INDEX.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (Exception e) {
+				System.out.println("Unable to write the list of saved games: " + e);
+			}
+		}
+
+		/* Renders the thumbnail of a slot in the background: the photo where the board is covered and grey
+		 * tiles where it is free. The board is copied first, as the game goes on while the thumbnail is drawn.
+		 */
+		public static void thumbnail(String name, boolean[][] free, BufferedImage photo) {
+			boolean[][] board = new boolean[free.length][];
+			for (int i = 0; i < free.length; i++)
+				board[i] = free[i].clone();
+			renderer.submit(() -> {
+				int t = Math.max(1, THUMBNAIL / Math.max(board.length, board[0].length));
+				int w = board.length * t;
+				int h = board[0].length * t;
+				BufferedImage img = photo == null ? new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB) : scaled(photo, w, h);
+				Graphics2D g = img.createGraphics();
+				g.setColor(new Color(0xCCCCCC));
+				for (int i = 0; i < board.length; i++)
+					for (int j = 0; j < board[i].length; j++)
+						if (board[i][j])
+							g.fillRect(i * t, j * t, t, t);
+				g.dispose();
+				synchronized (Saves.class) {
+					thumbnails.put(name, img);
+				}
+				try {
+					File tmp = new File(DIR, name + ".png.tmp");
+					ImageIO.write(img, "png", tmp);
+					Files.move(tmp.toPath(), new File(DIR, name + ".png").toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				catch (Exception e) {
+					System.out.println("Unable to save the thumbnail of saved game " + name + ": " + e);
+				}
+			});
+		}
+		// The thumbnail of a slot, read from its file only the first time it is needed
+		public static synchronized BufferedImage thumbnail(String name) {
+			if (!thumbnails.containsKey(name)) {
+				File f = new File(DIR, name + ".png");
+				BufferedImage img = null;
+				try {
+					if (f.isFile())
+						img = ImageIO.read(f);
+				}
+				catch (Exception e) {
+					System.out.println("Unable to read the thumbnail of saved game " + name + ": " + e);
+				}
+				thumbnails.put(name, img);
+			}
+			return thumbnails.get(name);
+		}
+		// Waits until all thumbnails that are being rendered have been written
+		public static void flush() {
+			try {
+				renderer.submit(() -> {}).get();
+			}
+			catch (Exception e) {
+				System.out.println("Unable to finish rendering thumbnails: " + e);
+			}
+		}
+	}
+
+	/* Exact cover solver using Knuth's Dancing Links (Algorithm X).
+	 * All columns are primary. Rows are added once, then solve() is called. A search that fails
+	 * or runs out of steps or time restores the links, so it may simply be retried with a fresh random
+	 * order; after a successful search the instance is left covered and must not be reused.
+	 */
+	public static class ExactCover {
+		private int[] left, right, up, down, column, row, size;
+		private int nodes, rows;
+		private int[] solution;
+		private int depth;
+		private long budget, deadline;
+		private Random random;
+
+		public ExactCover(int cols, int expectedNodes) {
+			int capacity = Math.max(cols + 1 + expectedNodes, 16);
+			left = new int[capacity];
+			right = new int[capacity];
+			up = new int[capacity];
+			down = new int[capacity];
+			column = new int[capacity];
+			row = new int[capacity];
+			size = new int[cols + 1];
+			// Node 0 is the root, nodes 1…cols are the column headers
+			for (int i = 0; i <= cols; i++) {
+				left[i] = i == 0 ? cols : i - 1;
+				right[i] = i == cols ? 0 : i + 1;
+				up[i] = down[i] = column[i] = i;
+				row[i] = -1;
+			}
+			nodes = cols + 1;
+			solution = new int[cols];
+		}
+
+		// Adds a row covering the given columns (0-based) and returns its index
+		public int addRow(int ... cols) {
+			if (nodes + cols.length > left.length) {
+				int capacity = Math.max(left.length * 2, nodes + cols.length);
+				left = Arrays.copyOf(left, capacity);
+				right = Arrays.copyOf(right, capacity);
+				up = Arrays.copyOf(up, capacity);
+				down = Arrays.copyOf(down, capacity);
+				column = Arrays.copyOf(column, capacity);
+				row = Arrays.copyOf(row, capacity);
+			}
+			int first = nodes;
+			for (int i = 0; i < cols.length; i++) {
+				int n = nodes++;
+				int c = cols[i] + 1;
+				column[n] = c;
+				row[n] = rows;
+				up[n] = up[c];
+				down[n] = c;
+				down[up[c]] = n;
+				up[c] = n;
+				size[c]++;
+				left[n] = i == 0 ? n : n - 1;
+				right[n] = first;
+				right[left[n]] = n;
+				left[first] = n;
+			}
+			return rows++;
+		}
+
+		/* Finds one exact cover, choosing randomly among the candidate rows at each step.
+		 * Returns the indices of the selected rows, or null if there is no solution or the
+		 * search did not finish within maxSteps, before System.nanoTime() reached the given
+		 * deadline or before the thread was interrupted. A single step may take long when
+		 * there are many rows, so the deadline is what actually bounds the search.
+		 */
+		public int[] solve(Random r, long maxSteps, long deadlineNanos) {
+			random = r;
+			budget = maxSteps;
+			deadline = deadlineNanos;
+			if (!search(0))
+				return null;
+			int[] result = new int[depth];
+			for (int i = 0; i < depth; i++)
+				result[i] = row[solution[i]];
+			return result;
+		}
+
+		private boolean search(int d) {
+			if (right[0] == 0) {
+				depth = d;
+				return true;
+			}
+			if (--budget < 0)
+				return false;
+			if (System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted()) {
+				budget = -1;
+				return false;
+			}
+			// Choose the column with the fewest remaining rows
+			int c = right[0];
+			int s = size[c];
+			for (int j = right[c]; j != 0 && s > 1; j = right[j])
+				if (size[j] < s) {
+					c = j;
+					s = size[j];
+				}
+			if (s == 0)
+				return false;
+			cover(c);
+			int r = down[c];
+			for (int k = random.nextInt(s); k > 0; k--)
+				r = down[r];
+			for (int n = 0; n < s && budget >= 0; n++, r = down[r]) {
+				if (r == c)
+					r = down[r];
+				solution[d] = r;
+				for (int j = right[r]; j != r; j = right[j])
+					cover(column[j]);
+				if (search(d + 1))
+					return true;
+				for (int j = left[r]; j != r; j = left[j])
+					uncover(column[j]);
+			}
+			uncover(c);
+			return false;
+		}
+
+		private void cover(int c) {
+			right[left[c]] = right[c];
+			left[right[c]] = left[c];
+			for (int i = down[c]; i != c; i = down[i])
+				for (int j = right[i]; j != i; j = right[j]) {
+					down[up[j]] = down[j];
+					up[down[j]] = up[j];
+					size[column[j]]--;
+				}
+		}
+
+		private void uncover(int c) {
+			for (int i = up[c]; i != c; i = up[i])
+				for (int j = left[i]; j != i; j = left[j]) {
+					size[column[j]]++;
+					down[up[j]] = j;
+					up[down[j]] = j;
+				}
+			right[left[c]] = c;
+			left[right[c]] = c;
+		}
+	}
+
+	/* A complete covering of a w×h board with bricks from a brickset.
+	 * The bricks are stored in random order together with the tile each brick's centre lies on.
+	 */
+	public static class Tiling {
+		private static final int SAMPLE = 256;
+		private static final long TIME_LIMIT = 10_000_000_000L;  // Nanoseconds after which generating gives up
+
+		public final String brickset;
+		public final int width, height;
+		public final Brick[] bricks;
+		public final Point[] anchors;
+
+		private Tiling(String bs, int w, int h, Brick[] b, Point[] a) {
+			brickset = bs;
+			width = w;
+			height = h;
+			bricks = b;
+			anchors = a;
+		}
+
+		// Generates a random tiling, or returns null if none was found in reasonable time
+		public static Tiling generate(BrickSet bs, int w, int h) {
+			return generate(bs, w, h, new Random());
+		}
+		public static Tiling generate(BrickSet bs, int w, int h, Random rnd) {
+			long deadline = System.nanoTime() + TIME_LIMIT;
+			// Large bricksets are tiled with a random sample of their bricks, as all of them would not fit into memory
+			BrickDescription[] candidates = bs.descrs;
+			if (candidates.length > SAMPLE) {
+				candidates = candidates.clone();
+				for (int i = 0; i < SAMPLE; i++) {
+					int j = i + rnd.nextInt(candidates.length - i);
+					BrickDescription d = candidates[i];
+					candidates[i] = candidates[j];
+					candidates[j] = d;
+				}
+				candidates = Arrays.copyOf(candidates, SAMPLE);
+			}
+			// Collect all distinct orientations of every brick
+			ArrayList<Brick> orientations = new ArrayList<>();
+			for (BrickDescription d : candidates) {
+				Set<Set<Point>> seen = new HashSet<>();
+				for (int rot = 0; rot < 4; rot++) {
+					Point[] pp = d.occupies(rot);
+					int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+					for (Point p : pp) {
+						minX = Math.min(minX, p.x);
+						minY = Math.min(minY, p.y);
+					}
+					Set<Point> normalized = new HashSet<>();
+					for (Point p : pp)
+						normalized.add(new Point(p.x - minX, p.y - minY));
+					if (seen.add(normalized))
+						orientations.add(new Brick(d, rot));
+				}
+			}
+			ExactCover dlx = new ExactCover(w * h, w * h * orientations.size() * 5);
+			ArrayList<Brick> rowBricks = new ArrayList<>();
+			ArrayList<Point> rowAnchors = new ArrayList<>();
+			for (Brick o : orientations) {
+				Point[] pp = o.occupies();
+				int[] cols = new int[pp.length];
+				for (int x = 0; x < w; x++)
+					for (int y = 0; y < h; y++) {
+						boolean ok = true;
+						for (int i = 0; i < pp.length && ok; i++) {
+							int px = x + pp[i].x;
+							int py = y + pp[i].y;
+							if (px < 0 || py < 0 || px >= w || py >= h)
+								ok = false;
+							else
+								cols[i] = px * h + py;
+						}
+						if (ok) {
+							dlx.addRow(cols);
+							rowBricks.add(o);
+							rowAnchors.add(new Point(x, y));
+						}
+					}
+			}
+			for (int attempt = 0; attempt < 20 && !Thread.currentThread().isInterrupted()
+					&& System.nanoTime() - deadline < 0; attempt++) {
+				// Restart with a fresh random order instead of getting stuck in a hopeless subtree
+				int[] result = dlx.solve(rnd, 20L * w * h * (attempt + 1), deadline);
+				if (result == null)
+					continue;
+				Brick[] bricks = new Brick[result.length];
+				Point[] anchors = new Point[result.length];
+				for (int i = 0; i < result.length; i++) {
+					int j = rnd.nextInt(i + 1);
+					bricks[i] = bricks[j];
+					anchors[i] = anchors[j];
+					bricks[j] = new Brick(rowBricks.get(result[i]).descr, rowBricks.get(result[i]).rotation);
+					anchors[j] = rowAnchors.get(result[i]);
+				}
+				return new Tiling(bs.name, w, h, bricks, anchors);
+			}
+			return null;
+		}
+	}
+
+	/* Generates bricksets holding all polyominoes up to a given size, written by »java Game polyominoes«.
+	 * Fixed polyominoes are enumerated with Redelmeier's algorithm: starting from one cell, every polyomino
+	 * is grown exactly once by adding cells from an "untried" set, and cells that became neighbours earlier
+	 * are never offered again, so nothing needs to be compared to what was found before. For one-sided
+	 * (distinct under rotation, as the game rotates bricks) and free (also under reflection) polyominoes,
+	 * only the fixed polyomino that comes first among its rotations (and reflections) is kept.
+	 */
+	public static class Polyominoes {
+		public static final int FIXED = 0;
+		public static final int ONE_SIDED = 1;
+		public static final int FREE = 2;
+
+		private final int min, max, kind, extent;
+		private final boolean holes, convex;
+		private final int width;  // Of the grid the cells are numbered on, with the first cell at (max, 1)
+		private final boolean[] seen;
+		private final int[][] untried;  // One stack per size, holding the untried set for growing to that size
+		private final int[] cells;
+		private final int[] xs, ys, key, other;
+		private final ArrayList<int[]> found = new ArrayList<>();
+
+		public Polyominoes(int smallest, int largest, int k, int maxExtent, boolean allowHoles, boolean convexOnly) {
+			min = Math.max(1, smallest);
+			max = largest;
+			kind = k;
+			extent = maxExtent;
+			holes = allowHoles;
+			convex = convexOnly;
+			width = 2 * max + 1;
+			seen = new boolean[width * (max + 2)];
+			// Cells above the first one, or left of it in its row, would find some polyominoes twice
+			for (int i = 0; i < width + max; i++)
+				seen[i] = true;
+			untried = new int[max + 1][3 * max + 2];
+			cells = new int[max];
+			xs = new int[max];
+			ys = new int[max];
+			key = new int[max];
+			other = new int[max];
+		}
+
+		// All polyominoes found, each as its cells packed by pack(x, y) relative to the top left of its bounds
+		public ArrayList<int[]> enumerate() {
+			found.clear();
+			if (max < 1)
+				return found;
+			seen[width + max] = true;
+			untried[0][0] = width + max;
+			grow(0, 1);
+			seen[width + max] = false;
+			return found;
+		}
+
+		private void grow(int size, int count) {
+			int[] from = untried[size];
+			while (count > 0) {
+				int c = from[--count];
+				cells[size] = c;
+				if (size + 1 >= min)
+					found(size + 1);
+				if (size + 1 < max) {
+					int[] to = untried[size + 1];
+					System.arraycopy(from, 0, to, 0, count);
+					int n = count;
+					for (int d : new int[] { c + 1, c - 1, c + width, c - width })
+						if (!seen[d]) {
+							seen[d] = true;
+							to[n++] = d;
+						}
+					grow(size + 1, n);
+					for (int i = count; i < n; i++)
+						seen[to[i]] = false;
+				}
+			}
+		}
+
+		private void found(int n) {
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = 0, maxY = 0;
+			for (int i = 0; i < n; i++) {
+				xs[i] = cells[i] % width;
+				ys[i] = cells[i] / width;
+				minX = Math.min(minX, xs[i]);
+				maxX = Math.max(maxX, xs[i]);
+				minY = Math.min(minY, ys[i]);
+				maxY = Math.max(maxY, ys[i]);
+			}
+			if (extent > 0 && Math.max(maxX - minX, maxY - minY) >= extent)
+				return;
+			for (int i = 0; i < n; i++) {
+				xs[i] -= minX;
+				ys[i] -= minY;
+			}
+			if (kind != FIXED && !first(n, maxX - minX, maxY - minY))
+				return;
+			if (convex && !convex(n, maxX - minX + 1, maxY - minY + 1))
+				return;
+			if (!holes && hasHoles(n, maxX - minX + 1, maxY - minY + 1))
+				return;
+			int[] p = new int[n];
+			for (int i = 0; i < n; i++)
+				p[i] = pack(xs[i], ys[i]);
+			Arrays.sort(p);
+			found.add(p);
+		}
+
+		public static int pack(int x, int y) {
+			return x << 16 | y;
+		}
+
+		// Whether no other rotation (or reflection) of the polyomino in xs and ys sorts before it
+		private boolean first(int n, int w, int h) {
+			for (int i = 0; i < n; i++)
+				key[i] = pack(xs[i], ys[i]);
+			Arrays.sort(key, 0, n);
+			for (int t = 1; t < (kind == FREE ? 8 : 4); t++) {
+				for (int i = 0; i < n; i++) {
+					int x = xs[i];
+					int y = ys[i];
+					if (t >= 4)
+						x = w - x;
+					switch (t % 4) {
+						case 1: other[i] = pack(h - y, x); break;
+						case 2: other[i] = pack(w - x, h - y); break;
+						case 3: other[i] = pack(y, w - x); break;
+						default: other[i] = pack(x, y); break;
+					}
+				}
+				Arrays.sort(other, 0, n);
+				for (int i = 0; i < n; i++) {
+					if (other[i] < key[i])
+						return false;
+					if (other[i] > key[i])
+						break;
+				}
+			}
+			return true;
+		}
+
+		// Whether every row and every column of the polyomino is a single run
+		private boolean convex(int n, int w, int h) {
+			int[] lo = new int[w + h];
+			int[] hi = new int[w + h];
+			int[] count = new int[w + h];
+			Arrays.fill(lo, Integer.MAX_VALUE);
+			for (int i = 0; i < n; i++) {
+				int c = xs[i];
+				int r = w + ys[i];
+				lo[c] = Math.min(lo[c], ys[i]);
+				hi[c] = Math.max(hi[c], ys[i]);
+				count[c]++;
+				lo[r] = Math.min(lo[r], xs[i]);
+				hi[r] = Math.max(hi[r], xs[i]);
+				count[r]++;
+			}
+			for (int i = 0; i < w + h; i++)
+				if (hi[i] - lo[i] + 1 != count[i])
+					return false;
+			return true;
+		}
+
+		// Whether some empty cells are enclosed by the polyomino, found by flooding the outside
+		private boolean hasHoles(int n, int w, int h) {
+			int gw = w + 2;
+			boolean[] filled = new boolean[gw * (h + 2)];
+			for (int i = 0; i < n; i++)
+				filled[(ys[i] + 1) * gw + xs[i] + 1] = true;
+			int[] queue = new int[filled.length];
+			int tail = 0;
+			filled[0] = true;
+			queue[tail++] = 0;
+			for (int head = 0; head < tail; head++) {
+				int c = queue[head];
+				for (int d : new int[] { c + 1, c - 1, c + gw, c - gw })
+					if (d >= 0 && d < filled.length && Math.abs(d % gw - c % gw) <= 1 && !filled[d]) {
+						filled[d] = true;
+						queue[tail++] = d;
+					}
+			}
+			return n + tail != filled.length;
+		}
+
+		// Writes a brickset file holding the given polyominoes, each in its own colour
+		public static void write(ArrayList<int[]> polyominoes, File f) throws IOException {
+			Set<Integer> colours = new HashSet<>();
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8))) {
+				out.println("# " + polyominoes.size() + " polyominoes, generated by »java Game polyominoes«");
+				int i = 0;
+				long seq = 0;
+				for (int[] p : polyominoes) {
+					String name = p.length + "_" + i;
+					/* Take hue, saturation and brightness from a low-discrepancy sequence (additive recurrence
+					 * with the powers of the inverse plastic number), so that bricks close in the list look
+					 * different and colours stay spread out however many there are
+					 */
+					int rgb;
+					do {
+						seq++;
+						float hue = (float)((seq * 0.8191725133961645) % 1);
+						float sat = (float)((seq * 0.6710436067037893) % 1);
+						float bri = (float)((seq * 0.5497004779019703) % 1);
+						rgb = Color.HSBtoRGB(hue, 0.35f + 0.5f * sat, 0.5f + 0.45f * bri) & 0xFFFFFF;
+					} while (!colours.add(rgb));
+					out.println("new " + name);
+					out.println(String.format("col %s %06X", name, rgb));
+					// Turn the brick about the cell nearest to the centre of its bounds
+					int w = 0, h = 0;
+					for (int c : p) {
+						w = Math.max(w, c >> 16);
+						h = Math.max(h, c & 0xFFFF);
+					}
+					int centre = p[0];
+					for (int c : p)
+						if (Math.abs(2 * (c >> 16) - w) + Math.abs(2 * (c & 0xFFFF) - h) <
+								Math.abs(2 * (centre >> 16) - w) + Math.abs(2 * (centre & 0xFFFF) - h))
+							centre = c;
+					for (int c : p)
+						out.println("add " + name + " " + ((c >> 16) - (centre >> 16)) + " " + ((c & 0xFFFF) - (centre & 0xFFFF)));
+					i++;
+				}
+			}
+		}
+
+		/* »java Game polyominoes <name> <largest> [options]« writes data/bricks/<name>. Options:
+		 *   · fixed, onesided (the default), free – which polyominoes count as different
+		 *   · min <n>    – leave out polyominoes with fewer than n cells
+		 *   · extent <n> – leave out polyominoes wider or higher than n cells
+		 *   · noholes    – leave out polyominoes that enclose empty cells
+		 *   · convex     – leave out polyominoes with a row or column that is not a single run
+		 */
+		public static void main(String[] args) throws IOException {
+			if (args.length < 2)
+				throw new IllegalArgumentException("Usage: java Game polyominoes <name> <largest> [options]");
+			int k = ONE_SIDED, smallest = 1, maxExtent = 0;
+			boolean allowHoles = true, convexOnly = false;
+			for (int i = 2; i < args.length; i++) {
+				switch (args[i]) {
+					case "fixed": k = FIXED; break;
+					case "onesided": k = ONE_SIDED; break;
+					case "free": k = FREE; break;
+					case "min": smallest = Integer.valueOf(args[++i]); break;
+					case "extent": maxExtent = Integer.valueOf(args[++i]); break;
+					case "noholes": allowHoles = false; break;
+					case "convex": convexOnly = true; break;
+					default: throw new IllegalArgumentException("Unknown option \"" + args[i] + "\"");
+				}
+			}
+			long start = System.nanoTime();
+			ArrayList<int[]> all = new Polyominoes(smallest, Integer.valueOf(args[1]), k, maxExtent, allowHoles, convexOnly).enumerate();
+			File f = new File("data/bricks", args[0]);
+			write(all, f);
+			System.out.printf("Wrote %d polyominoes to %s in %.1f s%n", all.size(), f, (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	/* Connected components of the free tiles of a board, kept in a union-find forest.
+	 * A region is identified by the index (x * height + y) of its root tile, which also
+	 * stores the region's size and bounding box. Freeing tiles merges regions directly;
+	 * filling tiles may split a region, so only that region is taken apart and rebuilt.
+	 */
+	public static class FreeRegions {
+		private final boolean[][] free;
+		private final int h;
+		private final int[] parent, size, minX, minY, maxX, maxY;
+		private final BitSet roots;
+		private int[] buffer;
+
+		public FreeRegions(boolean[][] f) {
+			free = f;
+			h = f[0].length;
+			int n = f.length * h;
+			parent = new int[n];
+			size = new int[n];
+			minX = new int[n];
+			minY = new int[n];
+			maxX = new int[n];
+			maxY = new int[n];
+			roots = new BitSet(n);
+			buffer = new int[64];
+			// Tiles to the east and south are not set up yet, so only join those to the west and north
+			for (int x = 0; x < f.length; x++)
+				for (int y = 0; y < h; y++)
+					if (f[x][y])
+						add(x, y, false);
+		}
+
+		public int regionAt(int x, int y) {
+			if (x < 0 || y < 0 || x >= free.length || y >= h || !free[x][y])
+				return -1;
+			return find(x * h + y);
+		}
+		// Iterate regions with: for (int r = nextRegion(0); r >= 0; r = nextRegion(r + 1))
+		public int nextRegion(int from) {
+			return roots.nextSetBit(from);
+		}
+		public int regionCount() {
+			return roots.cardinality();
+		}
+		public int size(int region) {
+			return size[region];
+		}
+		public Rectangle bounds(int region) {
+			return bounds(region, new Rectangle());
+		}
+		// Stores the bounds in the given rectangle instead of allocating a new one
+		public Rectangle bounds(int region, Rectangle r) {
+			r.setBounds(minX[region], minY[region], 1 + maxX[region] - minX[region], 1 + maxY[region] - minY[region]);
+			return r;
+		}
+
+		// To be called after the given tiles have been marked as free
+		public void freed(Point ... cells) {
+			for (Point p : cells)
+				add(p.x, p.y, true);
+		}
+		public void freed(int x, int y) {
+			add(x, y, true);
+		}
+
+		// To be called after the given tiles have been marked as occupied
+		public void filled(Point ... cells) {
+			int region = -1;
+			for (Point p : cells) {
+				int r = find(p.x * h + p.y);
+				if (region >= 0 && r != region)
+					throw new IllegalArgumentException("Tiles belong to different regions");
+				region = r;
+			}
+			if (region >= 0)
+				split(region);
+		}
+		// To be called after a brick covering the given tile has been marked as occupied
+		public void filled(int x, int y) {
+			split(find(x * h + y));
+		}
+
+		private void add(int x, int y, boolean ahead) {
+			int i = x * h + y;
+			parent[i] = i;
+			size[i] = 1;
+			minX[i] = maxX[i] = x;
+			minY[i] = maxY[i] = y;
+			roots.set(i);
+			if (x > 0 && free[x - 1][y])
+				union(i, i - h);
+			if (y > 0 && free[x][y - 1])
+				union(i, i - 1);
+			if (!ahead)
+				return;
+			if (x + 1 < free.length && free[x + 1][y])
+				union(i, i + h);
+			if (y + 1 < h && free[x][y + 1])
+				union(i, i + 1);
+		}
+
+		// Rebuilds the given region from its remaining free tiles, which may form several new regions
+		private void split(int region) {
+			int n = 0;
+			for (int x = minX[region]; x <= maxX[region]; x++)
+				for (int y = minY[region]; y <= maxY[region]; y++)
+					if (free[x][y] && find(x * h + y) == region) {
+						if (n == buffer.length)
+							buffer = Arrays.copyOf(buffer, n * 2);
+						buffer[n++] = x * h + y;
+					}
+			roots.clear(region);
+			for (int k = 0; k < n; k++) {
+				int i = buffer[k];
+				parent[i] = i;
+				size[i] = 0;
+			}
+			// Free neighbours of a tile always belong to the same region, hence to this batch
+			for (int k = 0; k < n; k++) {
+				int i = buffer[k];
+				int x = i / h;
+				int y = i % h;
+				if (x > 0 && free[x - 1][y])
+					link(i, i - h);
+				if (y > 0 && free[x][y - 1])
+					link(i, i - 1);
+			}
+			for (int k = 0; k < n; k++) {
+				int i = buffer[k];
+				int r = find(i);
+				int x = i / h;
+				int y = i % h;
+				if (size[r] == 0) {
+					roots.set(r);
+					minX[r] = maxX[r] = x;
+					minY[r] = maxY[r] = y;
+				}
+				size[r]++;
+				minX[r] = Math.min(minX[r], x);
+				maxX[r] = Math.max(maxX[r], x);
+				minY[r] = Math.min(minY[r], y);
+				maxY[r] = Math.max(maxY[r], y);
+			}
+		}
+
+		private int find(int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+		private void link(int a, int b) {
+			a = find(a);
+			b = find(b);
+			if (a != b)
+				parent[Math.max(a, b)] = Math.min(a, b);
+		}
+		private void union(int a, int b) {
+			a = find(a);
+			b = find(b);
+			if (a == b)
+				return;
+			if (size[a] < size[b]) {
+				int t = a;
+				a = b;
+				b = t;
+			}
+			parent[b] = a;
+			size[a] += size[b];
+			minX[a] = Math.min(minX[a], minX[b]);
+			minY[a] = Math.min(minY[a], minY[b]);
+			maxX[a] = Math.max(maxX[a], maxX[b]);
+			maxY[a] = Math.max(maxY[a], maxY[b]);
+			roots.clear(b);
+		}
+
+		// Whether the regions match those found by a flood fill of the free tiles, with the same sizes and bounds
+		public boolean matchesFloodFill() {
+			int w = free.length;
+			int[] label = new int[w * h];
+			Arrays.fill(label, -1);
+			int[] queue = new int[w * h];
+			Rectangle r = new Rectangle();
+			int count = 0;
+			for (int start = 0; start < label.length; start++) {
+				if (!free[start / h][start % h] || label[start] >= 0)
+					continue;
+				int region = find(start);
+				int tail = 0;
+				int x0 = w, y0 = h, x1 = -1, y1 = -1;
+				label[start] = count;
+				queue[tail++] = start;
+				for (int head = 0; head < tail; head++) {
+					int i = queue[head];
+					int x = i / h;
+					int y = i % h;
+					if (regionAt(x, y) != region)
+						return false;
+					x0 = Math.min(x0, x);
+					x1 = Math.max(x1, x);
+					y0 = Math.min(y0, y);
+					y1 = Math.max(y1, y);
+					if (x > 0 && free[x - 1][y] && label[i - h] < 0) {
+						label[i - h] = count;
+						queue[tail++] = i - h;
+					}
+					if (x + 1 < w && free[x + 1][y] && label[i + h] < 0) {
+						label[i + h] = count;
+						queue[tail++] = i + h;
+					}
+					if (y > 0 && free[x][y - 1] && label[i - 1] < 0) {
+						label[i - 1] = count;
+						queue[tail++] = i - 1;
+					}
+					if (y + 1 < h && free[x][y + 1] && label[i + 1] < 0) {
+						label[i + 1] = count;
+						queue[tail++] = i + 1;
+					}
+				}
+				if (!roots.get(region) || size[region] != tail
+						|| !bounds(region, r).equals(new Rectangle(x0, y0, 1 + x1 - x0, 1 + y1 - y0)))
+					return false;
+				count++;
+			}
+			return count == regionCount();
+		}
+
+		/* Checks the regions against a flood fill on random boards, both when built from a board with covered
+		 * tiles and after filling and freeing tiles one by one, and reports how many boards were wrong.
+		 */
+		public static void main(String[] args) {
+			int w = args.length > 0 ? Integer.valueOf(args[0]) : 15;
+			int h = args.length > 1 ? Integer.valueOf(args[1]) : 10;
+			int boards = args.length > 2 ? Integer.valueOf(args[2]) : 2000;
+			Random rnd = new Random(1);
+			int built = 0, updated = 0;
+			for (int n = 0; n < boards; n++) {
+				boolean[][] f = new boolean[w][h];
+				double covered = rnd.nextDouble();
+				for (int x = 0; x < w; x++)
+					for (int y = 0; y < h; y++)
+						f[x][y] = rnd.nextDouble() >= covered;
+				FreeRegions regions = new FreeRegions(f);
+				if (!regions.matchesFloodFill())
+					built++;
+				boolean right = true;
+				for (int i = 0; i < w * h && right; i++) {
+					int x = rnd.nextInt(w);
+					int y = rnd.nextInt(h);
+					f[x][y] = !f[x][y];
+					if (f[x][y])
+						regions.freed(x, y);
+					else
+						regions.filled(new Point(x, y));
+					right = regions.matchesFloodFill();
+				}
+				if (!right)
+					updated++;
+			}
+			System.out.printf("%d random %d×%d boards: %d built wrongly, %d updated wrongly%n", boards, w, h, built, updated);
+			if (built + updated > 0)
+				System.exit(1);
+		}
+	}
+
+	/* Run-length summary of the free tiles of a board: for every tile the number of consecutive
+	 * free tiles starting there towards the east, and for every row the longest such run.
+	 * A row is rebuilt whenever one of its tiles is filled or freed.
+	 */
+	public static class FreeRuns {
+		private final boolean[][] free;
+		private final int w, h;
+		private final int[] run, longest;
+
+		public FreeRuns(boolean[][] f) {
+			free = f;
+			w = f.length;
+			h = f[0].length;
+			run = new int[w * h];
+			longest = new int[h];
+			for (int y = 0; y < h; y++)
+				update(y);
+		}
+
+		// To be called after tiles in the given row have been filled or freed
+		public void update(int y) {
+			int n = 0;
+			int max = 0;
+			for (int x = w - 1; x >= 0; x--) {
+				n = free[x][y] ? n + 1 : 0;
+				run[y * w + x] = n;
+				max = Math.max(max, n);
+			}
+			longest[y] = max;
+		}
+
+		public int run(int x, int y) {
+			return run[y * w + x];
+		}
+		public int longest(int y) {
+			return longest[y];
+		}
+
+		// Whether the brick fits in the given rotation with its centre on the given tile
+		public boolean fitsAt(BrickDescription d, int rot, int ax, int ay) {
+			int[] r = d.runs(rot);
+			for (int k = 0; k < r.length; k += 3) {
+				int x = ax + r[k];
+				int y = ay + r[k + 1];
+				if (x < 0 || y < 0 || x >= w || y >= h || run[y * w + x] < r[k + 2])
+					return false;
+			}
+			return true;
+		}
+
+		// Whether the brick fits anywhere in the given rotation with all of its tiles inside the given area
+		public boolean fits(BrickDescription d, int rot, Rectangle area) {
+			int[] r = d.runs(rot);
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int k = 0; k < r.length; k += 3) {
+				minX = Math.min(minX, r[k]);
+				maxX = Math.max(maxX, r[k] + r[k + 2] - 1);
+				minY = Math.min(minY, r[k + 1]);
+				maxY = Math.max(maxY, r[k + 1]);
+			}
+			int x0 = Math.max(area.x, 0) - minX;
+			int x1 = Math.min(area.x + area.width, w) - 1 - maxX;
+			int y0 = Math.max(area.y, 0) - minY;
+			int y1 = Math.min(area.y + area.height, h) - 1 - maxY;
+			for (int ay = y0; ay <= y1; ay++) {
+				// Skip rows where some run of the brick is longer than any free run in its row
+				boolean possible = true;
+				for (int k = 0; k < r.length && possible; k += 3)
+					possible = longest[ay + r[k + 1]] >= r[k + 2];
+				if (!possible)
+					continue;
+				for (int ax = x0; ax <= x1;) {
+					int k;
+					int n = 0;
+					for (k = 0; k < r.length; k += 3) {
+						n = run[(ay + r[k + 1]) * w + ax + r[k]];
+						if (n < r[k + 2])
+							break;
+					}
+					if (k >= r.length)
+						return true;
+					// The tile after the short run is covered, so no anchor up to there can work either
+					ax += n + 1;
+				}
+			}
+			return false;
+		}
+	}
+
+	/* The free tiles of a board stored as runs per row, for boards far too large for a boolean per tile, such as
+	 * 100000×100000 boards made up of large free and covered areas. It answers the same questions as FreeRuns
+	 * and the occupied array. Rows are never changed in place but replaced, so rows that are entirely free or
+	 * entirely covered share one array, and memory grows with the number of runs instead of the area.
+	 */
+	public static class SparseBoard {
+		public final int w, h;
+		private final int[][] rows;  // Free tiles of each row as sorted [start, end) pairs
+		private final int[] longest;
+		private final int[] all;
+		private static final int[] NONE = new int[0];
+		private long free;
+
+		// A board on which all tiles are free
+		public SparseBoard(int width, int height) {
+			w = width;
+			h = height;
+			all = new int[] {0, w};
+			rows = new int[h][];
+			longest = new int[h];
+			Arrays.fill(rows, all);
+			Arrays.fill(longest, w);
+			free = (long)w * h;
+		}
+		public static SparseBoard of(boolean[][] f) {
+			SparseBoard b = new SparseBoard(f.length, f[0].length);
+			for (int y = 0; y < b.h; y++)
+				for (int x = 0; x < b.w; x++)
+					if (!f[x][y])
+						b.fill(x, y, 1);
+			return b;
+		}
+
+		public boolean free(int x, int y) {
+			return run(x, y) > 0;
+		}
+		// The number of free tiles from the given one to the right, 0 if it is covered or outside the board
+		public int run(int x, int y) {
+			if (x < 0 || y < 0 || x >= w || y >= h)
+				return 0;
+			int[] r = rows[y];
+			int i = find(r, x);
+			return i >= 0 && x < r[i + 1] ? r[i + 1] - x : 0;
+		}
+		public int longest(int y) {
+			return longest[y];
+		}
+		public long freeTiles() {
+			return free;
+		}
+		// The number of free runs, which is what the memory use grows with
+		public long runs() {
+			long n = 0;
+			for (int[] r : rows)
+				n += r.length / 2;
+			return n;
+		}
+		// Approximate memory use in bytes, counting the arrays shared by free and covered rows once
+		public long bytes() {
+			long n = 64 + 8L * h;
+			for (int[] r : rows)
+				if (r != all && r != NONE)
+					n += 16 + 4L * r.length;
+			return n;
+		}
+		// The first free tile of the row from the given one on, or the width of the board
+		private int nextFree(int x, int y) {
+			int[] r = rows[y];
+			int i = find(r, x);
+			if (i >= 0 && x < r[i + 1])
+				return x;
+			return i + 2 < r.length ? r[i + 2] : w;
+		}
+		// Index of the last pair starting at or before x, or -2
+		private static int find(int[] r, int x) {
+			int lo = 0, hi = r.length / 2 - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (r[2 * mid] <= x)
+					lo = mid + 1;
+				else
+					hi = mid - 1;
+			}
+			return 2 * hi;
+		}
+
+		// Whether the brick fits in the given rotation with its centre on the given tile
+		public boolean fitsAt(BrickDescription d, int rot, int ax, int ay) {
+			int[] r = d.runs(rot);
+			for (int k = 0; k < r.length; k += 3)
+				if (run(ax + r[k], ay + r[k + 1]) < r[k + 2])
+					return false;
+			return true;
+		}
+
+		// Whether the brick fits anywhere in the given rotation with all of its tiles inside the given area
+		public boolean fits(BrickDescription d, int rot, Rectangle area) {
+			int[] r = d.runs(rot);
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int k = 0; k < r.length; k += 3) {
+				minX = Math.min(minX, r[k]);
+				maxX = Math.max(maxX, r[k] + r[k + 2] - 1);
+				minY = Math.min(minY, r[k + 1]);
+				maxY = Math.max(maxY, r[k + 1]);
+			}
+			int x0 = Math.max(area.x, 0) - minX;
+			int x1 = Math.min(area.x + area.width, w) - 1 - maxX;
+			int y0 = Math.max(area.y, 0) - minY;
+			int y1 = Math.min(area.y + area.height, h) - 1 - maxY;
+			for (int ay = y0; ay <= y1; ay++) {
+				boolean possible = true;
+				for (int k = 0; k < r.length && possible; k += 3)
+					possible = longest[ay + r[k + 1]] >= r[k + 2];
+				if (!possible)
+					continue;
+				for (int ax = x0; ax <= x1;) {
+					int k;
+					int n = 0;
+					for (k = 0; k < r.length; k += 3) {
+						n = run(ax + r[k], ay + r[k + 1]);
+						if (n < r[k + 2])
+							break;
+					}
+					if (k >= r.length)
+						return true;
+					// The tile after the short run is covered, so skip ahead to the next free tile of that row
+					ax = nextFree(ax + r[k] + n, ay + r[k + 1]) - r[k];
+				}
+			}
+			return false;
+		}
+
+		// Covers the brick's tiles; returns false without changing anything if it does not fit there
+		public boolean place(BrickDescription d, int rot, int ax, int ay) {
+			if (!fitsAt(d, rot, ax, ay))
+				return false;
+			int[] r = d.runs(rot);
+			for (int k = 0; k < r.length; k += 3)
+				fill(ax + r[k], ay + r[k + 1], r[k + 2]);
+			return true;
+		}
+		// Frees the brick's tiles again, to take back a placement
+		public void remove(BrickDescription d, int rot, int ax, int ay) {
+			int[] r = d.runs(rot);
+			for (int k = 0; k < r.length; k += 3)
+				clear(ax + r[k], ay + r[k + 1], r[k + 2]);
+		}
+
+		// Covers or frees n tiles from the given one to the right
+		public void fill(int x, int y, int n) {
+			set(y, Math.max(x, 0), Math.min(x + n, w), false);
+		}
+		public void clear(int x, int y, int n) {
+			set(y, Math.max(x, 0), Math.min(x + n, w), true);
+		}
+		private void set(int y, int from, int to, boolean f) {
+			if (from >= to)
+				return;
+			int[] r = rows[y];
+			int[] out = new int[r.length + 4];
+			int n = 0;
+			if (f) {
+				// Merge the new run with those it overlaps or touches
+				boolean added = false;
+				for (int i = 0; i < r.length; i += 2) {
+					if (r[i + 1] < from) {
+						out[n++] = r[i];
+						out[n++] = r[i + 1];
+					}
+					else if (r[i] > to) {
+						if (!added) {
+							out[n++] = from;
+							out[n++] = to;
+							added = true;
+						}
+						out[n++] = r[i];
+						out[n++] = r[i + 1];
+					}
+					else {
+						from = Math.min(from, r[i]);
+						to = Math.max(to, r[i + 1]);
+					}
+				}
+				if (!added) {
+					out[n++] = from;
+					out[n++] = to;
+				}
+			}
+			else {
+				for (int i = 0; i < r.length; i += 2) {
+					if (r[i + 1] <= from || r[i] >= to) {
+						out[n++] = r[i];
+						out[n++] = r[i + 1];
+						continue;
+					}
+					if (r[i] < from) {
+						out[n++] = r[i];
+						out[n++] = from;
+					}
+					if (r[i + 1] > to) {
+						out[n++] = to;
+						out[n++] = r[i + 1];
+					}
+				}
+			}
+			replace(y, n == 0 ? NONE : n == 2 && out[0] == 0 && out[1] == w ? all : Arrays.copyOf(out, n));
+		}
+		private void replace(int y, int[] r) {
+			int count = 0;
+			int max = 0;
+			for (int i = 0; i < r.length; i += 2) {
+				count += r[i + 1] - r[i];
+				max = Math.max(max, r[i + 1] - r[i]);
+			}
+			free += count - (longest[y] == w ? w : tiles(rows[y]));
+			rows[y] = r;
+			longest[y] = max;
+		}
+		private static long tiles(int[] r) {
+			long n = 0;
+			for (int i = 0; i < r.length; i += 2)
+				n += r[i + 1] - r[i];
+			return n;
+		}
+
+		public boolean sameTiles(SparseBoard o) {
+			if (o.w != w || o.h != h)
+				return false;
+			for (int y = 0; y < h; y++)
+				if (!Arrays.equals(rows[y], o.rows[y]))
+					return false;
+			return true;
+		}
+
+		/* Format: width and height, then for each group of equal consecutive rows the number of rows, the
+		 * number of runs and the runs as alternating lengths of covered and free tiles, all as variable
+		 * length numbers of 7 bits per byte. Large equal areas thus take only a few bytes.
+		 */
+		public void write(OutputStream stream) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			writeNumber(out, w);
+			writeNumber(out, h);
+			for (int y = 0; y < h;) {
+				int[] r = rows[y];
+				int n = 1;
+				while (y + n < h && (rows[y + n] == r || Arrays.equals(rows[y + n], r)))
+					n++;
+				writeNumber(out, n);
+				writeNumber(out, r.length / 2);
+				int last = 0;
+				for (int v : r) {
+					writeNumber(out, v - last);
+					last = v;
+				}
+				y += n;
+			}
+			out.flush();
+		}
+		public static SparseBoard read(InputStream stream) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+			SparseBoard b = new SparseBoard(readNumber(in), readNumber(in));
+			for (int y = 0; y < b.h;) {
+				int n = readNumber(in);
+				int[] r = new int[2 * readNumber(in)];
+				int last = 0;
+				for (int i = 0; i < r.length; i++) {
+					last += readNumber(in);
+					if (last > b.w || (i % 2 == 1 && last <= r[i - 1]))
+						throw new IOException("Invalid run in row " + y);
+					r[i] = last;
+				}
+				if (n < 1 || y + n > b.h)
+					throw new IOException("Invalid number of rows at row " + y);
+				if (r.length == 0)
+					r = NONE;
+				else if (r.length == 2 && r[0] == 0 && r[1] == b.w)
+					r = b.all;
+				for (int i = 0; i < n; i++)
+					b.replace(y + i, r);
+				y += n;
+			}
+			return b;
+		}
+		private static void writeNumber(DataOutputStream out, int v) throws IOException {
+			while ((v & ~0x7F) != 0) {
+				out.writeByte((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte(v);
+		}
+		private static int readNumber(DataInputStream in) throws IOException {
+			int v = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readUnsignedByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+				if (shift > 28)
+					throw new IOException("Invalid number");
+			}
+		}
+
+		/* Stress test for huge boards: covers random rectangles and then drops random bricks at random places,
+		 * and reports how quickly placements are checked, how long searching for a free place takes, how many
+		 * runs the board has and how large it is when written out.
+		 */
+		public static void main(String[] args) throws IOException {
+			int w = args.length > 0 ? Integer.valueOf(args[0]) : 100000;
+			int h = args.length > 1 ? Integer.valueOf(args[1]) : w;
+			int bricks = args.length > 2 ? Integer.valueOf(args[2]) : 1000000;
+			BrickSet bs = BrickSet.named(args.length > 3 ? args[3] : DEFAULT_BRICKSET);
+			Random rnd = new Random(1);
+			long start = System.nanoTime();
+			SparseBoard b = new SparseBoard(w, h);
+			for (int i = 0; i < 100; i++) {
+				int rw = 1 + rnd.nextInt(Math.max(1, w / 10));
+				int rh = 1 + rnd.nextInt(Math.max(1, h / 10));
+				int rx = rnd.nextInt(w);
+				int ry = rnd.nextInt(h);
+				for (int y = ry; y < Math.min(ry + rh, h); y++)
+					b.fill(rx, y, rw);
+			}
+			int placed = 0;
+			for (int i = 0; i < bricks; i++) {
+				BrickDescription d = bs.random(rnd);
+				if (b.place(d, rnd.nextInt(4), rnd.nextInt(w), rnd.nextInt(h)))
+					placed++;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%d×%d board: %d of %d bricks placed in %.2f s (%.0f ns per brick)%n",
+					w, h, placed, bricks, seconds, seconds * 1e9 / bricks);
+			System.out.printf("%d free tiles in %d runs, taking about %.1f MB%n", b.freeTiles(), b.runs(), b.bytes() / 1e6);
+			int searches = 10000;
+			int found = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < searches; i++) {
+				int s = 1 + rnd.nextInt(100);
+				if (b.fits(bs.random(rnd), rnd.nextInt(4), new Rectangle(rnd.nextInt(w), rnd.nextInt(h), s, s)))
+					found++;
+			}
+			System.out.printf("%d searches in areas of up to 100×100 tiles: %.1f µs each, %d found a place%n",
+					searches, (System.nanoTime() - start) / 1e3 / searches, found);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			start = System.nanoTime();
+			b.write(bytes);
+			double write = (System.nanoTime() - start) / 1e6;
+			start = System.nanoTime();
+			SparseBoard copy = read(new ByteArrayInputStream(bytes.toByteArray()));
+			double read = (System.nanoTime() - start) / 1e6;
+			System.out.printf("Written as %d bytes in %.0f ms, read back in %.0f ms%s%n", bytes.size(), write, read,
+					copy.sameTiles(b) && copy.freeTiles() == b.freeTiles() ? "" : ", BUT IT DIFFERS");
+		}
+	}
+
+	/* For one rotation of a brick, the nearest tile on which the brick can be placed (counting steps between
+	 * neighbouring tiles) for every tile of the board, found by a breadth-first search from all legal tiles.
+	 * It is built when the brick is picked up or rotated, so looking up where to snap the brick to while the
+	 * mouse moves is a single array access.
+	 */
+	public static class SnapField {
+		private final BrickDescription descr;
+		private final int rotation;
+		private final boolean[][] board;
+		private final long version;
+		private final int[] nearest;  // Index x * height + y of the nearest legal tile, or -1 if there is none
+
+		public SnapField(BrickDescription d, int rot, boolean[][] b, FreeRuns runs, long v) {
+			descr = d;
+			rotation = rot;
+			board = b;
+			version = v;
+			int w = b.length;
+			int h = b[0].length;
+			nearest = new int[w * h];
+			int[] queue = new int[w * h];
+			int tail = 0;
+			for (int x = 0; x < w; x++)
+				for (int y = 0; y < h; y++) {
+					int i = x * h + y;
+					if (runs.fitsAt(d, rot, x, y)) {
+						nearest[i] = i;
+						queue[tail++] = i;
+					}
+					else
+						nearest[i] = -1;
+				}
+			for (int head = 0; head < tail; head++) {
+				int i = queue[head];
+				int x = i / h;
+				int y = i % h;
+				if (x > 0 && nearest[i - h] < 0) {
+					nearest[i - h] = nearest[i];
+					queue[tail++] = i - h;
+				}
+				if (x + 1 < w && nearest[i + h] < 0) {
+					nearest[i + h] = nearest[i];
+					queue[tail++] = i + h;
+				}
+				if (y > 0 && nearest[i - 1] < 0) {
+					nearest[i - 1] = nearest[i];
+					queue[tail++] = i - 1;
+				}
+				if (y + 1 < h && nearest[i + 1] < 0) {
+					nearest[i + 1] = nearest[i];
+					queue[tail++] = i + 1;
+				}
+			}
+		}
+
+		public boolean fits(BrickDescription d, int rot, boolean[][] b, long v) {
+			return descr == d && rotation == rot && board == b && version == v;
+		}
+
+		// The nearest legal tile to the given one, which is moved onto the board first if necessary
+		public int nearest(int x, int y) {
+			int h = board[0].length;
+			x = Math.max(0, Math.min(board.length - 1, x));
+			y = Math.max(0, Math.min(h - 1, y));
+			return nearest[x * h + y];
+		}
+	}
+
+	/* Estimates how likely the board can still be completed and how many points each waiting brick is
+	 * worth, by playing the rest of the board out many times (Monte-Carlo rollouts) from a copy of the
+	 * current state. Rollouts play greedily, putting a brick where it touches the most covered tiles and
+	 * borders, and run on a fixed number of background threads until the state changes.
+	 */
+	public static class Estimator {
+		private static final int LIMIT = 20000;  // Rollouts after which an estimate is considered good enough
+		private static final long INTERVAL = 100;  // Milliseconds between notifications about new results
+
+		private final int threads;
+		private final ExecutorService pool;
+		private final Runnable update;
+		private final ArrayList<Future<?>> running = new ArrayList<>();
+		private volatile Estimate current;
+
+		// Calls update on some worker thread whenever the estimate improved
+		public Estimator(int t, Runnable u) {
+			threads = t;
+			update = u;
+			pool = Executors.newFixedThreadPool(t, r -> {
+				Thread thread = new Thread(r, "Estimator");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+		}
+
+		public Estimate current() {
+			return current;
+		}
+
+		// Cancels the running estimate and starts a new one from a copy of the given state
+		public synchronized void start(long key, boolean[][] board, Brick[] hand, int trash, BrickSet bs,
+				ArrayList<BrickDescription> undealt) {
+			stop();
+			Estimate e = new Estimate(key, board, hand, trash, bs, undealt);
+			current = e;
+			for (int i = 0; i < threads; i++)
+				running.add(pool.submit(() -> e.run(update)));
+		}
+
+		public synchronized void stop() {
+			if (current != null)
+				current.cancelled = true;
+			for (Future<?> f : running)
+				f.cancel(true);
+			running.clear();
+			current = null;
+		}
+
+		public static class Estimate {
+			public final long key;  // Hash of the state this is an estimate for
+			private final boolean[][] board;
+			private final BrickDescription[] hand;
+			private final int trash;
+			private final BrickSet brickset;
+			private final ArrayList<BrickDescription> undealt;
+			private volatile boolean cancelled;
+
+			private final AtomicInteger next = new AtomicInteger();
+			private final AtomicLongArray rollouts, points;  // Per slot in which the first brick was taken
+			private final AtomicLong cleared = new AtomicLong();
+			private final AtomicLong lastUpdate = new AtomicLong();
+
+			private Estimate(long k, boolean[][] b, Brick[] h, int t, BrickSet bs, ArrayList<BrickDescription> u) {
+				key = k;
+				board = new boolean[b.length][];
+				for (int x = 0; x < b.length; x++)
+					board[x] = b[x].clone();
+				hand = new BrickDescription[h.length];
+				for (int i = 0; i < h.length; i++)
+					hand[i] = h[i] == null ? null : h[i].descr;
+				trash = t;
+				brickset = bs;
+				undealt = u == null ? null : new ArrayList<>(u);
+				rollouts = new AtomicLongArray(h.length);
+				points = new AtomicLongArray(h.length);
+			}
+
+			public long rollouts() {
+				long n = 0;
+				for (int i = 0; i < hand.length; i++)
+					n += rollouts.get(i);
+				return n;
+			}
+
+			// The estimated probability of completing the board
+			public double clearProbability() {
+				long n = rollouts();
+				return n == 0 ? Double.NaN : (double)cleared.get() / n;
+			}
+
+			// The estimated number of points gained until the end of the board when taking the given brick first
+			public double expectedPoints(int slot) {
+				long n = rollouts.get(slot);
+				return n == 0 ? Double.NaN : (double)points.get(slot) / n;
+			}
+
+			private void run(Runnable update) {
+				Random rnd = ThreadLocalRandom.current();
+				while (!cancelled && !Thread.currentThread().isInterrupted()) {
+					int n = next.getAndIncrement();
+					if (n >= LIMIT)
+						return;
+					int slot = n % hand.length;
+					if (hand[slot] == null)
+						continue;
+					long result = rollout(slot, rnd);
+					if (cancelled)
+						return;
+					if (result == Long.MIN_VALUE)
+						continue;
+					boolean clear = (result & 1) != 0;
+					points.addAndGet(slot, result >> 1);
+					if (clear)
+						cleared.incrementAndGet();
+					rollouts.incrementAndGet(slot);
+					long now = System.currentTimeMillis();
+					long last = lastUpdate.get();
+					if ((now - last >= INTERVAL || n + 1 >= LIMIT) && lastUpdate.compareAndSet(last, now))
+						update.run();
+				}
+			}
+
+			/* Plays the board out, starting with the brick in the given slot. Returns the points gained,
+			 * shifted left by one with the lowest bit set if the board was completed, or Long.MIN_VALUE if
+			 * the estimate was cancelled in the meantime.
+			 */
+			private long rollout(int first, Random rnd) {
+				int w = board.length;
+				int h = board[0].length;
+				boolean[][] free = new boolean[w][];
+				int left = 0;
+				for (int x = 0; x < w; x++) {
+					free[x] = board[x].clone();
+					for (int y = 0; y < h; y++)
+						if (free[x][y])
+							left++;
+				}
+				FreeRuns runs = new FreeRuns(free);
+				BrickDescription[] bricks = hand.clone();
+				ArrayList<BrickDescription> tiling = undealt == null ? null : new ArrayList<>(undealt);
+				int bin = trash;
+				long gained = 0;
+				for (int slot = first; left > 0; slot = -1) {
+					if (cancelled)
+						return Long.MIN_VALUE;
+					// Find the placement touching the most covered tiles and borders, ties broken at random
+					int best = -1, bestSlot = -1, bestRot = 0, bestX = 0, bestY = 0, ties = 0;
+					for (int i = slot < 0 ? 0 : slot; i < (slot < 0 ? bricks.length : slot + 1); i++) {
+						BrickDescription d = bricks[i];
+						if (d == null)
+							continue;
+						for (int r = 0; r < 4; r++)
+							for (int ax = 0; ax < w; ax++)
+								for (int ay = 0; ay < h; ay++) {
+									if (!runs.fitsAt(d, r, ax, ay))
+										continue;
+									int contact = 0;
+									for (int k = 0; k < d.size(); k++) {
+										int x = ax + d.x(k, r);
+										int y = ay + d.y(k, r);
+										if (x == 0 || !free[x - 1][y]) contact++;
+										if (x == w - 1 || !free[x + 1][y]) contact++;
+										if (y == 0 || !free[x][y - 1]) contact++;
+										if (y == h - 1 || !free[x][y + 1]) contact++;
+									}
+									if (contact > best) {
+										best = contact;
+										ties = 1;
+									}
+									else if (contact < best || rnd.nextInt(++ties) != 0)
+										continue;
+									bestSlot = i;
+									bestRot = r;
+									bestX = ax;
+									bestY = ay;
+								}
+					}
+					int i = bestSlot;
+					if (i >= 0) {
+						BrickDescription d = bricks[i];
+						for (int k = 0; k < d.size(); k++)
+							free[bestX + d.x(k, bestRot)][bestY + d.y(k, bestRot)] = false;
+						for (int k = 0; k < d.size(); k++)
+							runs.update(bestY + d.y(k, bestRot));
+						left -= d.size();
+						gained += d.size() * (d.size() - 1) / 2;
+					}
+					else if (bin > 0) {
+						// Nothing fits, so throw a brick away as a player would
+						i = slot;
+						while (i < 0 || bricks[i] == null)
+							i = rnd.nextInt(bricks.length);
+						bin--;
+						gained -= bricks[i].size() * (bricks[i].size() + 1) / 2;
+						if (tiling != null)
+							tiling.add(rnd.nextInt(tiling.size() + 1), bricks[i]);
+					}
+					else
+						return gained << 1;
+					bricks[i] = tiling != null && !tiling.isEmpty() ? tiling.remove(tiling.size() - 1) : brickset.random(rnd);
+				}
+				return gained << 1 | 1;
+			}
+		}
+	}
+
+	/* Packed image bundle, written by »java Game pack«. It holds every background image at a few sizes
+	 * as uncompressed rasters, which are memory-mapped and used in place, so that switching backgrounds
+	 * needs no decoding and all running games share the rasters through the operating system's page cache.
+	 *
+	 * File layout (big-endian): the magic string MOSAIK, a version int and the number of images; per image
+	 * its name (as written by DataOutput.writeUTF), the number of sizes and for each size, smallest first,
+	 * width, height and the file offset of the raster. Rasters hold 3 bytes (R, G, B) per pixel, row by row.
+	 */
+	public static class ImageBundle {
+		public static final File FILE = new File("data/images.bundle");
+		public static final int[] SIZES = { 640, 1280, 2560 };
+		private static final String MAGIC = "MOSAIK";
+		private static final int VERSION = 1;
+
+		private static ImageBundle bundle;
+		private static boolean opened;
+
+		private final FileChannel channel;
+		private final Map<String, long[]> index = new HashMap<>();  // Triples of width, height and offset
+		private final Map<String, BufferedImage> mapped = new HashMap<>();
+
+		// Returns the bundle, or null if there is none
+		public static synchronized ImageBundle get() {
+			if (!opened) {
+				opened = true;
+				if (FILE.isFile()) {
+					try {
+						bundle = new ImageBundle(FILE);
+					}
+					catch (IOException e) {
+						System.out.println("Unable to read image bundle: " + e);
+					}
+				}
+			}
+			return bundle;
+		}
+
+		private ImageBundle(File f) throws IOException {
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				byte[] magic = new byte[MAGIC.length()];
+				in.readFully(magic);
+				if (!new String(magic, StandardCharsets.US_ASCII).equals(MAGIC) || in.readInt() != VERSION)
+					throw new IOException("Not an image bundle of a known version");
+				for (int n = in.readInt(); n > 0; n--) {
+					String name = in.readUTF();
+					long[] sizes = new long[in.readInt() * 3];
+					for (int i = 0; i < sizes.length; i++)
+						sizes[i] = i % 3 == 2 ? in.readLong() : in.readInt();
+					index.put(name, sizes);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/* Returns the smallest version of the image that is at least as large as the given size,
+		 * or the largest one if there is none; or null if the image is not in the bundle.
+		 */
+		public synchronized BufferedImage image(String name, int w, int h) {
+			long[] sizes = index.get(name);
+			if (sizes == null)
+				return null;
+			int k = 0;
+			while (k + 3 < sizes.length && (sizes[k] < w || sizes[k + 1] < h))
+				k += 3;
+			String key = name + "@" + k;
+			BufferedImage img = mapped.get(key);
+			if (img == null) {
+				int iw = (int)sizes[k];
+				int ih = (int)sizes[k + 1];
+				try {
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, sizes[k + 2], 3L * iw * ih);
+					int[] masks = { 0xFF0000, 0xFF00, 0xFF };
+					WritableRaster raster = Raster.createWritableRaster(new SinglePixelPackedSampleModel(
+							DataBuffer.TYPE_INT, iw, ih, masks), new MappedRaster(buffer, iw * ih), null);
+					img = new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+				}
+				catch (IOException e) {
+					System.out.println("Unable to map image »" + name + "« from bundle: " + e);
+					return null;
+				}
+				mapped.put(key, img);
+			}
+			return img;
+		}
+
+		/* A copy of image(name, w, h) in an ordinary image, for painting from it many times: reading the mapped
+		 * raster takes a call and three reads from the mapping per pixel.
+		 */
+		public BufferedImage copy(String name, int w, int h) {
+			BufferedImage src = image(name, w, h);
+			if (src == null)
+				return null;
+			int iw = src.getWidth();
+			int ih = src.getHeight();
+			BufferedImage img = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+			// A duplicate has a position of its own, so games may copy from the same mapping at once
+			ByteBuffer data = ((MappedRaster)src.getRaster().getDataBuffer()).data.duplicate();
+			data.rewind();
+			byte[] row = new byte[3 * iw];
+			for (int y = 0, p = 0; y < ih; y++) {
+				data.get(row);
+				for (int o = 0; o < row.length; o += 3)
+					pixels[p++] = (row[o] & 0xFF) << 16 | (row[o + 1] & 0xFF) << 8 | (row[o + 2] & 0xFF);
+			}
+			return img;
+		}
+
+		// Presents mapped RGB bytes as packed int pixels, without copying them
+		private static class MappedRaster extends DataBuffer {
+			private final MappedByteBuffer data;
+			public MappedRaster(MappedByteBuffer b, int size) {
+				super(DataBuffer.TYPE_INT, size);
+				data = b;
+			}
+			public int getElem(int bank, int i) {
+				int o = i * 3;
+				return (data.get(o) & 0xFF) << 16 | (data.get(o + 1) & 0xFF) << 8 | (data.get(o + 2) & 0xFF);
+			}
+			public void setElem(int bank, int i, int val) {
+				throw new UnsupportedOperationException("Bundled images are read-only");
+			}
 		}
-		public int size() {
-			return occupies.length;
+
+		// Packs all images in the given directory into a bundle
+		public static void pack(File dir, File out) throws IOException {
+			File[] files = dir.listFiles();
+			Arrays.sort(files);
+			// The index comes first, so all sizes have to be known before decoding anything
+			ArrayList<String> names = new ArrayList<>();
+			ArrayList<int[]> dims = new ArrayList<>();
+			for (File f : files) {
+				try (ImageInputStream stream = ImageIO.createImageInputStream(f)) {
+					Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+					if (readers == null || !readers.hasNext()) {
+						System.out.println("Skipping " + f + ": not an image");
+						continue;
+					}
+					ImageReader reader = readers.next();
+					reader.setInput(stream);
+					int w = reader.getWidth(0);
+					int h = reader.getHeight(0);
+					reader.dispose();
+					ArrayList<Integer> d = new ArrayList<>();
+					for (int size : SIZES) {
+						double scale = Math.min(1.0, (double)size / Math.max(w, h));
+						int sw = Math.max(1, (int)Math.round(w * scale));
+						int sh = Math.max(1, (int)Math.round(h * scale));
+						if (d.isEmpty() || d.get(d.size() - 2).intValue() != sw) {
+							d.add(sw);
+							d.add(sh);
+						}
+					}
+					int[] result = new int[d.size()];
+					for (int i = 0; i < result.length; i++)
+						result[i] = d.get(i);
+					names.add(f.getName());
+					dims.add(result);
+				}
+			}
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream index = new DataOutputStream(header);
+			index.writeBytes(MAGIC);
+			index.writeInt(VERSION);
+			index.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				index.writeUTF(names.get(i));
+				index.writeInt(0);
+				for (int k = 0; k < dims.get(i).length / 2; k++) {
+					index.writeInt(0);
+					index.writeInt(0);
+					index.writeLong(0);
+				}
+			}
+			// Now that the header size is known, write it again with the real offsets
+			long headerSize = header.size();
+			header.reset();
+			index.writeBytes(MAGIC);
+			index.writeInt(VERSION);
+			index.writeInt(names.size());
+			long offset = headerSize;
+			for (int i = 0; i < names.size(); i++) {
+				int[] d = dims.get(i);
+				index.writeUTF(names.get(i));
+				index.writeInt(d.length / 2);
+				for (int k = 0; k < d.length; k += 2) {
+					index.writeInt(d[k]);
+					index.writeInt(d[k + 1]);
+					index.writeLong(offset);
+					offset += 3L * d[k] * d[k + 1];
+				}
+			}
+			try (OutputStream o = new BufferedOutputStream(new FileOutputStream(out), 1 << 16)) {
+				header.writeTo(o);
+				byte[] row = new byte[0];
+				for (int i = 0; i < names.size(); i++) {
+					BufferedImage src = ImageIO.read(new File(dir, names.get(i)));
+					int[] d = dims.get(i);
+					for (int k = 0; k < d.length; k += 2) {
+						BufferedImage img = scaled(src, d[k], d[k + 1]);
+						int[] pixels = img.getRGB(0, 0, d[k], d[k + 1], null, 0, d[k]);
+						if (row.length < pixels.length * 3)
+							row = new byte[pixels.length * 3];
+						for (int p = 0; p < pixels.length; p++) {
+							row[3 * p] = (byte)(pixels[p] >> 16);
+							row[3 * p + 1] = (byte)(pixels[p] >> 8);
+							row[3 * p + 2] = (byte)pixels[p];
+						}
+						o.write(row, 0, pixels.length * 3);
+					}
+					System.out.println("Packed " + names.get(i));
+				}
+			}
 		}
 	}
-	public static class Brick {
-		public final BrickDescription descr;
-		public int rotation;
-		/* Rotation:
-		 * 0 – None
-		 * 1 – Clockwise
-		 * 2 – Double
-		 * 3 – Counterclockwise
-		 */
-		public Brick(BrickDescription d, int rot) {
-			descr = d;
-			rotation = rot;
+
+	/* Pre-rendered tiles for every brick colour in every drawing state at one tile size,
+	 * so that bricks can be drawn by copying images instead of filling and outlining each tile.
+	 */
+	public static class TileAtlas {
+		public static final int NORMAL = 0;
+		public static final int HIGHLIGHTED = 1;  // Also used for the brick held by the mouse
+		public static final int GHOST = 2;        // Preview of the held brick on the board
+		public static final int ILLEGAL = 3;      // Preview where the held brick can not be placed
+		private static final int STATES = 4;
+
+		public final BrickSet brickset;
+		public final int size;
+		private final GraphicsConfiguration gc;
+		private final BufferedImage[][] tiles;  // Rendered when first needed, as bricksets may be huge
+		private final BufferedImage boardTile, illegal;
+		private int[] boardPixels;
+
+		public TileAtlas(BrickSet bs, int s, GraphicsConfiguration g) {
+			brickset = bs;
+			size = Math.max(1, s);
+			gc = g;
+			tiles = new BufferedImage[bs.descrs.length][];
+			illegal = tile(new Color(0x3F000000, true), null, 3);
+			boardTile = tile(new Color(0xCCCCCC), new Color(0x333333), 0);
 		}
-		public Brick(BrickDescription d) {
-			this(d, (int)(4 * Math.random()));
+
+		public boolean fits(BrickSet bs, int s) {
+			return brickset == bs && size == Math.max(1, s);
 		}
-		public Point[] occupies() {
-			return descr.occupies(rotation);
+		public BufferedImage tile(BrickDescription d, int state) {
+			if (tiles[d.id] == null) {
+				tiles[d.id] = new BufferedImage[STATES];
+				tiles[d.id][NORMAL] = tile(d.colour, d.colour.darker(), 0);
+				tiles[d.id][HIGHLIGHTED] = tile(d.colour.brighter(), d.colour.darker().darker(), 0);
+				tiles[d.id][GHOST] = tile(d.colour, null, 3);
+				tiles[d.id][ILLEGAL] = illegal;
+			}
+			return tiles[d.id][state];
+		}
+		// A covered board tile
+		public BufferedImage boardTile() {
+			return boardTile;
+		}
+		// The same as packed RGB pixels, for copying it straight into the raster of an image
+		public int[] boardPixels() {
+			if (boardPixels == null)
+				boardPixels = boardTile.getRGB(0, 0, size, size, null, 0, size);
+			return boardPixels;
+		}
+
+		private BufferedImage tile(Color fill, Color border, int inset) {
+			BufferedImage img = gc == null ? new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB) :
+					gc.createCompatibleImage(size, size, Transparency.TRANSLUCENT);
+			Graphics2D g = img.createGraphics();
+			g.setColor(fill);
+			g.fillRect(inset, inset, size - 2 * inset, size - 2 * inset);
+			if (border != null) {
+				g.setColor(border);
+				g.drawRect(1, 1, size - 3, size - 3);
+			}
+			g.dispose();
+			return img;
 		}
 	}
 
@@ -216,212 +2375,655 @@ public class Game {
 		int h = display.getHeight();
 		return Math.min(w * 2 / (3 * occupied.length), h / occupied[0].length);
 	}
+	// The area of the board on the screen; the same object is updated and returned on every call
 	public Rectangle rect() {
 		int w = display.getWidth();
 		int h = display.getHeight();
 		int size = tilesize();
-		return new Rectangle((w / 3) - (size * occupied.length / 2), (h / 2) - (size * occupied[0].length / 2),
+		boardRect.setBounds((w / 3) - (size * occupied.length / 2), (h / 2) - (size * occupied[0].length / 2),
 				size * occupied.length, size * occupied[0].length);
+		return boardRect;
 	}
-	public Point tileAt() {
+	/* The tile on which the held brick would be placed: the one under the mouse, or when snapping and the mouse
+	 * is on or close to the board the nearest legal one. The same object is updated and returned on every call.
+	 */
+	public Point target() {
 		if (mousePos == null)
 			return null;
 		Rectangle rect = rect();
 		int size = tilesize();
-		return new Point((mousePos.x - rect.x) / size, (mousePos.y - rect.y) / size);
+		target.setLocation((mousePos.x - rect.x) / size, (mousePos.y - rect.y) / size);
+		if (!snap || selectedBrick == -1 || mayPlace(target.x, target.y))
+			return target;
+		int x = Math.floorDiv(mousePos.x - rect.x, size);
+		int y = Math.floorDiv(mousePos.y - rect.y, size);
+		if (x < -SNAP_RADIUS || y < -SNAP_RADIUS
+				|| x >= occupied.length + SNAP_RADIUS || y >= occupied[0].length + SNAP_RADIUS)
+			return target;
+		Brick b = waiting[selectedBrick];
+		SnapField f = snapFields[b.rotation];
+		// Built by prepareSnap(), never while the mouse moves
+		if (f == null || !f.fits(b.descr, b.rotation, occupied, boardVersion))
+			return target;
+		int n = f.nearest(target.x, target.y);
+		if (n >= 0)
+			target.setLocation(n / occupied[0].length, n % occupied[0].length);
+		return target;
 	}
-	public Point[] tilesAt() {
-		if (mousePos == null)
-			return null;
-		Point center = tileAt();
-		Point[] locs = waiting[selectedBrick].occupies();
-		Point[] result = new Point[locs.length];
-		for (int i = 0; i < locs.length; i++)
-			result[i] = new Point(locs[i].x + center.x, locs[i].y + center.y);
-		return result;
+	// Builds the snap field for the held brick's rotation unless it is up to date
+	private void prepareSnap() {
+		if (!snap || headless || selectedBrick == -1)
+			return;
+		Brick b = waiting[selectedBrick];
+		SnapField f = snapFields[b.rotation];
+		if (f == null || !f.fits(b.descr, b.rotation, occupied, boardVersion))
+			snapFields[b.rotation] = new SnapField(b.descr, b.rotation, occupied, runs, boardVersion);
 	}
 	public boolean mayPlace() {
 		if (selectedBrick == -1 || mousePos == null)
 			return false;
-		for (Point p : tilesAt()) {
-			if (!occupied(p.x, p.y, false))
+		Point center = target();
+		return mayPlace(center.x, center.y);
+	}
+	public boolean mayPlace(int x, int y) {
+		if (selectedBrick == -1)
+			return false;
+		Brick b = waiting[selectedBrick];
+		for (int i = 0; i < b.descr.size(); i++) {
+			if (!occupied(b.descr.x(i, b.rotation) + x, b.descr.y(i, b.rotation) + y, false))
 				return false;
 		}
 		return true;
 	}
 	public boolean occupied(int x, int y, boolean def) {
-		try {
-			return occupied[x][y];
-		}
-		catch (IndexOutOfBoundsException e) {
+		if (x < 0 || y < 0 || x >= occupied.length || y >= occupied[x].length)
 			return def;
-		}
+		return occupied[x][y];
 	}
 
 	public synchronized void draw() {
-		if (frame == null) return;
+		if (display == null) return;
+		long start = System.nanoTime();
+		render();
+		renderTime += System.nanoTime() - start;
+	}
+
+	private void render() {
+		estimate();
 
 		int w = display.getWidth();
 		int h = display.getHeight();
-		int whm = Math.max(w, h);
-
-		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = img.createGraphics();
-
-		for (int i = 0; i < whm * 2; i++) {
-			int c = 255 * i / (whm * 2);
-			g.setColor(new Color(c, c, c));
-			if (w > h)
-				g.drawLine(i, 0, 0, i * h / w);
-			else
-				g.drawLine(i * w / h, 0, 0, i);
+		// Every frame is drawn into the same image, which is only replaced when the window size changes
+		boolean resized = frameImage == null || frameImage.getWidth() != w || frameImage.getHeight() != h;
+		if (resized) {
+			if (frameGraphics != null)
+				frameGraphics.dispose();
+			frameImage = new BufferedImage(Math.max(1, w), Math.max(1, h), BufferedImage.TYPE_INT_RGB);
+			frameGraphics = frameImage.createGraphics();
 		}
+		Graphics2D g = frameGraphics;
+		// While the window is being resized, trade quality for speed until the size settles
+		g.setRenderingHint(RenderingHints.KEY_RENDERING,
+				resizing ? RenderingHints.VALUE_RENDER_SPEED : RenderingHints.VALUE_RENDER_QUALITY);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, resizing ?
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				resizing ? RenderingHints.VALUE_TEXT_ANTIALIAS_OFF : RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
 		int size = tilesize();
 		Rectangle rect = rect();
-		{
-			double imgR = (double)image.getWidth() / image.getHeight();
-			double rectR = (double)rect.width / rect.height;
-			int x, y;
-			if (imgR > rectR) {
-				y = rect.y;
-				x = rect.x + rect.width / 2 - rect.width / 2;
+		if (!resizing && (atlas == null || !atlas.fits(brickset, size))) {
+			atlas = new TileAtlas(brickset, size, display.getGraphicsConfiguration());
+			handAtlases = new TileAtlas[atlas.size];
+		}
+		if (layer == null || layer.getWidth() != frameImage.getWidth() || layer.getHeight() != frameImage.getHeight() ||
+				layerVersion != boardVersion || layerBoard != occupied || layerImage != image ||
+				layerAtlas != atlas || layerResizing != resizing)
+			drawLayer(w, h, size, rect);
+		g.drawImage(layer, 0, 0, null);
+
+		int compH = h / (Math.min(waiting.length, HAND_SLOTS) + 2);
+		if (fontUnit != compH) {
+			fontUnit = compH;
+			trashFont = new Font(Font.SERIF, Font.BOLD, compH / 2);
+			pointsFont = new Font(Font.SERIF, Font.BOLD, compH / 4);
+			estimateFont = new Font(Font.SERIF, Font.PLAIN, compH / 5);
+		}
+		trashBox.setBounds(w * 2 / 3, h - compH, w / 3 - 1, compH * 2 / 3);
+		g.setColor(TRASH);
+		g.fillRect(trashBox.x, trashBox.y, trashBox.width, trashBox.height);
+		g.setColor(TRASH_BORDER);
+		g.drawRect(trashBox.x, trashBox.y, trashBox.width, trashBox.height);
+		if (trashLabel.outdated(trashFont, trash))
+			trashLabel.update(g, trashFont, TRASH_BORDER, trash, trash > 0 ? ("+" + trash) : "–");
+		trashLabel.draw(g, trashBox.x + trashBox.width / 2 - trashLabel.width / 2,
+				trashBox.y + trashBox.height / 2 + trashLabel.height / 3);
+		if (pointsLabel.outdated(pointsFont, points))
+			pointsLabel.update(g, pointsFont, TEXT, points, "" + points);
+		pointsLabel.draw(g, trashBox.x + trashBox.width / 2 - pointsLabel.width / 2, h - pointsLabel.height / 3);
+		trashRect = trash > 0 ? trashBox : null;
+		layoutHand(w, h, compH, size);
+		Estimator.Estimate estimate = estimator == null ? null : estimator.current();
+		if (estimate != null && estimate.rollouts() > 0) {
+			double p = estimate.clearProbability() * 100;
+			if (clearLabel.outdated(estimateFont, Math.round(p)))
+				clearLabel.update(g, estimateFont, TEXT, Math.round(p), String.format("Clear: %.0f%%", p));
+			clearLabel.draw(g, w * 5 / 6 - clearLabel.width / 2, compH / 2 + clearLabel.height / 3);
+			if (expectedLabels.length != waiting.length) {
+				expectedLabels = new Label[waiting.length];
+				for (int i = 0; i < waiting.length; i++)
+					expectedLabels[i] = new Label();
 			}
-			else {
-				x = rect.x;
-				y = rect.y + rect.height / 2 - rect.height / 2;
-			}
-			g.setClip(rect);
-			g.drawImage(image, x, y, rect.width, rect.height, null);
-			g.setClip(null);
-		}
-		for (int i = 0; i < occupied.length; i++)
-			for (int j = 0; j < occupied[i].length; j++)
-				if (occupied[i][j]) {
-					g.setColor(new Color(0xCCCCCC));
-					g.fillRect(rect.x + i * size, rect.y + j * size, size, size);
-					g.setColor(new Color(255 - g.getColor().getRed(), 255 - g.getColor().getGreen(), 255 - g.getColor().getBlue()));
-					g.drawRect(rect.x + i * size + 1, rect.y + j * size + 1, size - 3, size - 3);
-				}
-
-		int compH = h / (waiting.length + 2);
-		g.setColor(new Color(0x1F000000, true));
-		g.fillRect(w * 2 / 3, 0, w / 3, h);
-		trashRect = new Rectangle(w * 2 / 3, h - compH, w / 3 - 1, compH * 2 / 3);
-		g.setColor(new Color(0x111111));
-		g.fill(trashRect);
-		g.setColor(new Color(0xCCCCCC));
-		g.draw(trashRect);
-		g.setFont(new Font(Font.SERIF, Font.BOLD, compH / 2));
-		String str = trash > 0 ? ("+" + trash) : "–";
-		Rectangle b = g.getFont().getStringBounds(str, g.getFontRenderContext()).getBounds();
-		g.drawString(str, trashRect.x + trashRect.width / 2 - b.width / 2,
-				trashRect.y + trashRect.height / 2 + b.height / 3);
-		g.setFont(new Font(Font.SERIF, Font.BOLD, compH / 4));
-		str = "" + points;
-		b = g.getFont().getStringBounds(str, g.getFontRenderContext()).getBounds();
-		g.setColor(new Color(0x222222));
-		g.drawString(str, trashRect.x + trashRect.width / 2 - b.width / 2,
-				h - b.height / 3);
-		if (trash <= 0)
-			trashRect = null;
-		ArrayList<Integer> indicesToDraw = new ArrayList<>();
-		for (int i = 0; i < waiting.length; i++)
-			if (waiting[i] != null && (i != highlightBrick && (i != selectedBrick || mousePos == null)))
-				indicesToDraw.add(i);
-		if (selectedBrick != -1 && mousePos != null)
-			indicesToDraw.add(selectedBrick);
-		else if (highlightBrick != -1)
-			indicesToDraw.add(highlightBrick);
-		for (int i : indicesToDraw) {
-			if (waiting[i] != null) {
-				if (i == selectedBrick && mousePos != null) {
-					Point[] locations = waiting[i].occupies();
-					g.setColor(mayPlace() ? waiting[i].descr.colour : new Color(0x3F000000, true));
-					for (Point p : tilesAt()) {
-						g.fillRect(rect.x + p.x * size + 3, rect.y + p.y * size + 3, size - 6, size - 6);
-					}
-					for (Point p : locations) {
-						g.setColor(waiting[i].descr.colour.brighter());
-						g.fillRect(mousePos.x + p.x * size - size / 2, mousePos.y + p.y * size - size / 2, size, size);
-						g.setColor(waiting[i].descr.colour.darker().darker());
-						g.drawRect(mousePos.x + p.x * size + 1 - size / 2, mousePos.y + p.y * size + 1 - size / 2,
-								size - 3, size - 3);
-					}
-					waitingRects[i] = null;
+		}
+		else
+			estimate = null;
+		// Only the visible rows of the hand are drawn
+		boolean holding = selectedBrick != -1 && mousePos != null;
+		int last = Math.min(waiting.length, (handFirst + handVisible) * handCols);
+		for (int i = handFirst * handCols; i < last; i++) {
+			if (waiting[i] == null)
+				continue;
+			int cx = handBox.x + (i % handCols) * handCell;
+			int cy = handBox.y + (i / handCols - handFirst) * handCell;
+			if (i != selectedBrick || !holding) {
+				BrickDescription d = waiting[i].descr;
+				int rot = waiting[i].rotation;
+				int t = handTile[i];
+				int state = i == highlightBrick ? TileAtlas.HIGHLIGHTED : TileAtlas.NORMAL;
+				for (int k = 0; k < d.size(); k++)
+					drawTile(g, d, state, cx + handX[i] + d.x(k, rot) * t, cy + handY[i] + d.y(k, rot) * t, t);
+			}
+			double e = estimate == null ? Double.NaN : estimate.expectedPoints(i);
+			if (!Double.isNaN(e)) {
+				Label l = expectedLabels[i];
+				if (l.outdated(estimateFont, Math.round(e)))
+					l.update(g, estimateFont, TEXT, Math.round(e), String.format("%+.0f", e));
+				l.draw(g, cx + handCell - l.width - handCell / 16, cy + handCell - handCell / 16);
+			}
+		}
+		if (handRows > handVisible) {
+			// Scroll bar along the right edge of the grid
+			int track = handBox.height;
+			g.setColor(TEXT);
+			g.fillRect(handBox.x + handBox.width - 3, handBox.y + track * handFirst / handRows,
+					3, Math.max(1, track * handVisible / handRows));
+		}
+		if (holding) {
+			BrickDescription d = waiting[selectedBrick].descr;
+			int rot = waiting[selectedBrick].rotation;
+			int state = mayPlace() ? TileAtlas.GHOST : TileAtlas.ILLEGAL;
+			Point center = target();
+			for (int k = 0; k < d.size(); k++) {
+				drawTile(g, d, state, rect.x + (center.x + d.x(k, rot)) * size,
+						rect.y + (center.y + d.y(k, rot)) * size, size);
+			}
+			for (int k = 0; k < d.size(); k++) {
+				drawTile(g, d, TileAtlas.HIGHLIGHTED,
+						mousePos.x + d.x(k, rot) * size - size / 2, mousePos.y + d.y(k, rot) * size - size / 2, size);
+			}
+		}
+
+		if (menu != null || message != null)
+			overlayRect.setBounds(rect.x + size / 2, rect.y + size / 2,
+					size * (occupied.length - 1), size * (occupied[0].length - 1));
+		if (menu != null)
+			menu.draw(g, overlayRect);
+		if (message != null) {
+			if (messageUnit != size) {
+				messageUnit = size;
+				titleFont = new Font(Font.SERIF, Font.BOLD, size / 2);
+				bodyFont = new Font(Font.SERIF, Font.PLAIN, size / 3);
+			}
+			if (message.fullscreen) {
+				// Messages replace their text with a new string whenever it changes, so comparing references is enough
+				if (overlayMessage != message || overlayText != message.text()) {
+					overlayMessage = message;
+					overlayText = message.text();
+					messageOverlay.invalidate();
 				}
-				else {
-					Area area = new Area();
-					int off;
-					if (i % 2 == 0) {
-						int m = 0;
-						for (Point p : waiting[i].occupies())
-							m = Math.min(m, p.x);
-						off = w * 2 / 3 - m * size + size / 2;
-					}
-					else {
-						int m = 0;
-						for (Point p : waiting[i].occupies())
-							m = Math.max(m, p.x);
-						off = w - m * size - size * 3 / 2;
-					}
-					for (Point p : waiting[i].occupies()) {
-						g.setColor(waiting[i].descr.colour);
-						if (i == highlightBrick)
-							g.setColor(g.getColor().brighter());
-						g.fillRect(off + p.x * size, i * compH + compH * 3 / 2 + p.y * size, size, size);
-						g.setColor(waiting[i].descr.colour.darker());
-						if (i == highlightBrick)
-							g.setColor(g.getColor().darker());
-						g.drawRect(off + p.x * size + 1, i * compH + compH * 3 / 2 + p.y * size + 1,
-								size - 3, size - 3);
-						area.add(new Area(new Rectangle2D.Double(
-								off + p.x * size, i * compH + compH * 3 / 2 + p.y * size, size, size)));
+				messageOverlay.state[6] = size;
+				Graphics2D og = messageOverlay.begin(g, overlayRect, w, h);
+				if (og != null) {
+					drawMessage(og, new Rectangle(overlayRect), size);
+					messageOverlay.finish(og);
+				}
+				messageOverlay.draw(g);
+			} else {
+				if (titleLabel.outdated(titleFont, message.title))
+					titleLabel.update(g, titleFont, Color.WHITE, 0, message.title);
+				titleLabel.draw(g, rect.x + rect.width / 2 - titleLabel.width / 2, rect.y / 2 + titleLabel.height / 2);
+				if (bodyLabel.outdated(bodyFont, message.text()))
+					bodyLabel.update(g, bodyFont, Color.WHITE, 0, message.text());
+				bodyLabel.draw(g, rect.x + rect.width / 2 - bodyLabel.width / 2, h - rect.y / 2 + bodyLabel.height / 2);
+			}
+		}
+
+		if (display.getIcon() == null || resized)
+			display.setIcon(new ImageIcon(frameImage));
+		else
+			display.repaint();
+	}
+
+	// A message over the whole board, with its title and each line of its text centred
+	private void drawMessage(Graphics2D g, Rectangle msgRect, int size) {
+		g.setColor(SHADOW);
+		g.fill(msgRect);
+		g.setColor(Color.WHITE);
+		g.draw(msgRect);
+		g.setFont(titleFont);
+		Rectangle b = g.getFont().getStringBounds(message.title, g.getFontRenderContext()).getBounds();
+		g.drawString(message.title, msgRect.x + msgRect.width / 2 - b.width / 2, msgRect.y + size);
+		String[] strs = message.text().split("\n");
+		int spacing = Math.min(size, size * (occupied[0].length - 2) / (strs.length + 2));
+		g.setFont(bodyFont);
+		int i = 0;
+		for (String s : strs) {
+			b = g.getFont().getStringBounds(s, g.getFontRenderContext()).getBounds();
+			g.drawString(s, msgRect.x + msgRect.width / 2 - b.width / 2, msgRect.y + size * 2 + spacing * i);
+			i++;
+		}
+	}
+
+	/* An overlay rendered once into an image of its own, which is then only copied into each frame until
+	 * the state it shows changes. The state is given as numbers in state[], of which the first six are set
+	 * to the overlay's bounds and the window size, and compared with those it was last rendered with.
+	 * Text may reach beyond the bounds, so the image is as large as the window, but only the part that
+	 * was painted is copied.
+	 */
+	private static class Overlay {
+		public final int[] state;
+		private final int[] drawn;
+		private BufferedImage image;
+		private final Rectangle painted = new Rectangle();
+		private Object antialiasing;
+		private boolean stale;
+
+		public Overlay(int n) {
+			state = new int[n];
+			drawn = new int[n];
+		}
+		// Graphics to render the overlay with if it is outdated, otherwise null; to be passed to finish()
+		public Graphics2D begin(Graphics2D g, Rectangle bounds, int w, int h) {
+			state[0] = bounds.x;
+			state[1] = bounds.y;
+			state[2] = bounds.width;
+			state[3] = bounds.height;
+			state[4] = w = Math.max(1, w);
+			state[5] = h = Math.max(1, h);
+			// Text is not antialiased while resizing, and needs redrawing once that's done
+			Object hint = g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+			if (image != null && !stale && hint == antialiasing && Arrays.equals(state, drawn))
+				return null;
+			stale = false;
+			antialiasing = hint;
+			System.arraycopy(state, 0, drawn, 0, state.length);
+			if (image == null || image.getWidth() != w || image.getHeight() != h)
+				image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D og = image.createGraphics();
+			og.setComposite(AlphaComposite.Clear);
+			og.fillRect(0, 0, w, h);
+			og.setComposite(AlphaComposite.SrcOver);
+			og.setRenderingHints(g.getRenderingHints());
+			return og;
+		}
+		// Finds the part of the image that was painted
+		public void finish(Graphics2D og) {
+			og.dispose();
+			int w = image.getWidth();
+			int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			int minX = w, minY = image.getHeight(), maxX = -1, maxY = -1;
+			for (int p = 0; p < pixels.length; p++) {
+				if (pixels[p] == 0)
+					continue;
+				int x = p % w;
+				int y = p / w;
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+			painted.setBounds(minX, minY, Math.max(0, maxX + 1 - minX), Math.max(0, maxY + 1 - minY));
+		}
+		// For state that is not a number
+		public void invalidate() {
+			stale = true;
+		}
+		public void draw(Graphics2D g) {
+			if (painted.isEmpty())
+				return;
+			int x1 = painted.x + painted.width;
+			int y1 = painted.y + painted.height;
+			g.drawImage(image, painted.x, painted.y, x1, y1, painted.x, painted.y, x1, y1, null);
+		}
+	}
+
+	// Draws everything that only changes with the board: background, covered tiles and dead pockets
+	private void drawLayer(int w, int h, int size, Rectangle rect) {
+		if (layer == null || layer.getWidth() != frameImage.getWidth() || layer.getHeight() != frameImage.getHeight())
+			layer = new BufferedImage(frameImage.getWidth(), frameImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+		layerVersion = boardVersion;
+		layerBoard = occupied;
+		layerImage = image;
+		layerAtlas = atlas;
+		layerResizing = resizing;
+		int lw = layer.getWidth();
+		int lh = layer.getHeight();
+		int[] pixels = ((DataBufferInt)layer.getRaster().getDataBuffer()).getData();
+
+		if (!resizing && (background == null || backgroundSource != image ||
+				background.getWidth() != rect.width || background.getHeight() != rect.height)) {
+			ImageBundle bundle = ImageBundle.get();
+			BufferedImage source = bundle == null ? null : bundle.image(currentImageName, rect.width, rect.height);
+			background = scaled(source != null ? source : image, rect.width, rect.height);
+			backgroundSource = image;
+		}
+		// During a resize the last background is stretched to the new size instead of scaling the photo again
+		BufferedImage photo = backgroundSource == image ? background : image;
+		int[] photoPixels = photo != null && photo.getType() == BufferedImage.TYPE_INT_RGB &&
+				photo.getWidth() == rect.width && photo.getHeight() == rect.height ?
+				((DataBufferInt)photo.getRaster().getDataBuffer()).getData() : null;
+		int rx = rect.x, ry = rect.y, rw = rect.width, rh = rect.height;
+
+		// Diagonal gradient from black in the top left to white in the bottom right corner
+		int whm = Math.max(Math.max(w, h), 1);
+		double gx = (double)whm / Math.max(w, 1);
+		double gy = (double)whm / Math.max(h, 1);
+		double gl = 2 * whm / (gx * gx + gy * gy);
+		double len = gx * gl * gx * gl + gy * gl * gy * gl;
+		double ex = gx * gl / len;  // Increase of the gradient per pixel to the right and down
+		double ey = gy * gl / len;
+		Strips.draw(lw, lh, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				double t = (y + 0.5) * ey + 0.5 * ex;
+				for (int p = y * lw, end = p + lw; p < end; p++, t += ex)
+					pixels[p] = (t <= 0 ? 0 : t >= 1 ? 255 : (int)(t * 255 + 0.5)) * 0x010101;
+				if (photoPixels != null && y >= ry && y < ry + rh && rx >= 0 && rx < lw)
+					System.arraycopy(photoPixels, (y - ry) * rw, pixels, y * lw + rx, Math.min(rw, lw - rx));
+			}
+		});
+		if (photoPixels == null) {
+			Graphics2D g = layer.createGraphics();
+			g.setRenderingHints(frameGraphics.getRenderingHints());
+			g.drawImage(photo, rx, ry, rw, rh, null);
+			g.dispose();
+		}
+
+		// Which tiles are covered, and which of those lie in free pockets that are too small for any brick
+		int cols = occupied.length;
+		int rows = occupied[0].length;
+		if (layerCells == null || layerCells.length != cols * rows)
+			layerCells = new byte[cols * rows];
+		byte[] cells = layerCells;
+		for (int i = 0; i < cols; i++)
+			for (int j = 0; j < rows; j++)
+				cells[i * rows + j] = occupied[i][j] ? COVERED : 0;
+		for (int reg = regions.nextRegion(0); reg >= 0; reg = regions.nextRegion(reg + 1)) {
+			if (regions.size(reg) >= brickset.smallest())
+				continue;
+			Rectangle bounds = regions.bounds(reg, scratchRect);
+			for (int i = bounds.x; i < bounds.x + bounds.width; i++)
+				for (int j = bounds.y; j < bounds.y + bounds.height; j++)
+					if (regions.regionAt(i, j) == reg)
+						cells[i * rows + j] = DEAD;
+		}
+		int[] tile;
+		if (atlas != null && atlas.fits(brickset, size))
+			tile = atlas.boardPixels();
+		else {
+			tile = new int[size * size];
+			Arrays.fill(tile, Color.LIGHT_GRAY.getRGB());
+		}
+		int shadow = SHADOW.getAlpha();
+		int panel = PANEL.getAlpha();
+		int px = Math.min(w * 2 / 3, lw);
+		int pw = Math.min(w / 3, lw - px);
+		Strips.draw(lw, lh, (from, to) -> {
+			for (int y = from; y < to; y++) {
+				int row = y * lw;
+				if (size > 0 && y >= ry && y < ry + rh) {
+					int j = (y - ry) / size;
+					int ty = (y - ry) % size;
+					for (int i = 0; i < cols; i++) {
+						byte c = cells[i * rows + j];
+						int x = rx + i * size;
+						int n = Math.min(size, lw - x);
+						if (c == 0 || x < 0 || n <= 0)
+							continue;
+						System.arraycopy(tile, ty * size, pixels, row + x, n);
+						if (c == DEAD)
+							darken(pixels, row + x, row + x + n, shadow);
 					}
-					waitingRects[i] = area;
 				}
+				darken(pixels, row + px, row + px + pw, panel);
 			}
+		});
+	}
+	private static final byte COVERED = 1, DEAD = 2;  // States of the tiles in the layer
+
+	// Blends black with the given opacity over the pixels in the given range
+	private static void darken(int[] pixels, int from, int to, int alpha) {
+		int k = 255 - alpha;
+		for (int i = from; i < to; i++) {
+			int c = pixels[i];
+			pixels[i] = (((c >> 16) & 0xFF) * k / 255) << 16 | (((c >> 8) & 0xFF) * k / 255) << 8 | (c & 0xFF) * k / 255;
+		}
+	}
+
+	/* Draws the rows of an image in horizontal strips on all cores. The rows are split in halves until a
+	 * strip is small enough, and each strip writes only its own pixels, so that no locking is needed.
+	 */
+	private static class Strips extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		private static final int SERIAL = 1 << 16;  // Images with fewer pixels are drawn on the calling thread
+
+		public interface Rows {
+			void draw(int from, int to);
+		}
+
+		private final Rows rows;
+		private final int from, to, min;
+
+		private Strips(Rows r, int f, int t, int m) {
+			rows = r;
+			from = f;
+			to = t;
+			min = m;
+		}
+
+		public static void draw(int width, int height, Rows r) {
+			if ((long)width * height < SERIAL || pool.getParallelism() == 1)
+				r.draw(0, height);
 			else
-				waitingRects[i] = null;
+				pool.invoke(new Strips(r, 0, height, Math.max(8, height / (4 * pool.getParallelism()))));
 		}
 
-		if (menu != null) {
-			menu.draw(g, new Rectangle(rect.x + size / 2, rect.y + size / 2,
-					size * (occupied.length - 1), size * (occupied[0].length - 1)));
+		protected void compute() {
+			if (to - from <= min) {
+				rows.draw(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Strips(rows, from, mid, min), new Strips(rows, mid, to, min));
 		}
-		if (message != null) {
-			if (message.fullscreen) {
-				Rectangle msgRect = new Rectangle(rect.x + size / 2, rect.y + size / 2,
-						size * (occupied.length - 1), size * (occupied[0].length - 1));
-				g.setColor(new Color(0x7F000000, true));
-				g.fill(msgRect);
-				g.setColor(Color.WHITE);
-				g.draw(msgRect);
-				g.setFont(new Font(Font.SERIF, Font.BOLD, size / 2));
-				b = g.getFont().getStringBounds(message.title, g.getFontRenderContext()).getBounds();
-				g.drawString(message.title, msgRect.x + msgRect.width / 2 - b.width / 2, msgRect.y + size);
-				String[] strs = message.text().split("\n");
-				int spacing = Math.min(size, size * (occupied[0].length - 2) / (strs.length + 2));
-				g.setFont(new Font(Font.SERIF, Font.PLAIN, size / 3));
-				int i = 0;
-				for (String s : strs) {
-					b = g.getFont().getStringBounds(s, g.getFontRenderContext()).getBounds();
-					g.drawString(s, msgRect.x + msgRect.width / 2 - b.width / 2, msgRect.y + size * 2 + spacing * i);
-					i++;
+	}
+
+	// A piece of text that is only formatted and rendered again when its value or font changes
+	private static class Label {
+		private Font font;
+		private long value;
+		private String text;
+		private BufferedImage image;
+		private int x, y;  // Offset of the image from the start of the text's baseline
+		public int width, height;
+
+		public boolean outdated(Font f, long v) {
+			return f != font || v != value;
+		}
+		// For text that is replaced by a new string whenever it changes, so that comparing references suffices
+		public boolean outdated(Font f, String t) {
+			return f != font || t != text;
+		}
+		public void update(Graphics2D g, Font f, Color c, long v, String t) {
+			font = f;
+			value = v;
+			text = t;
+			Rectangle b = f.getStringBounds(text, g.getFontRenderContext()).getBounds();
+			width = b.width;
+			height = b.height;
+			x = b.x;
+			y = b.y;
+			image = new BufferedImage(Math.max(1, b.width), Math.max(1, b.height), BufferedImage.TYPE_INT_ARGB);
+			Graphics2D ig = image.createGraphics();
+			ig.setRenderingHints(g.getRenderingHints());
+			ig.setFont(f);
+			ig.setColor(c);
+			ig.drawString(text, -b.x, -b.y);
+			ig.dispose();
+		}
+		public void draw(Graphics2D g, int tx, int ty) {
+			g.drawImage(image, tx + x, ty + y, null);
+		}
+	}
+
+
+	// Draws a brick's tile, or a covered board tile if d is null; flat while the tile atlas is outdated
+	private void drawTile(Graphics2D g, BrickDescription d, int state, int x, int y, int size) {
+		TileAtlas a = atlas(size);
+		if (a != null) {
+			g.drawImage(d == null ? a.boardTile() : a.tile(d, state), x, y, null);
+			return;
+		}
+		if (d == null) {
+			g.setColor(Color.LIGHT_GRAY);
+			g.fillRect(x, y, size, size);
+		}
+		else if (state == TileAtlas.ILLEGAL || state == TileAtlas.GHOST) {
+			g.setColor(state == TileAtlas.GHOST ? d.colour : Color.GRAY);
+			g.fillRect(x + 3, y + 3, size - 6, size - 6);
+		}
+		else {
+			g.setColor(d.colour);
+			g.fillRect(x, y, size, size);
+		}
+	}
+
+	private static final int HAND_SLOTS = 8;  // Larger hands do not make the bin and the labels smaller
+
+	/* Lays out the waiting bricks in a grid of square cells on the right hand side, as large as possible
+	 * while all of them fit, or else with rows that can be scrolled. Each brick is scaled by its own extent
+	 * to fit its cell, but never drawn larger than the tiles of the board.
+	 */
+	private void layoutHand(int w, int h, int unit, int size) {
+		int n = waiting.length;
+		boolean grid = handBricks.length != n || handW != w || handH != h || handBoardTile != size;
+		if (grid) {
+			if (handBricks.length != n) {
+				handBricks = new Brick[n];
+				handRotations = new int[n];
+				handX = new int[n];
+				handY = new int[n];
+				handTile = new int[n];
+			}
+			handW = w;
+			handH = h;
+			handBoardTile = size;
+			int pw = Math.max(1, w - w * 2 / 3);
+			int ph = Math.max(1, h - 2 * unit);
+			int cols = 1, cell = 0;
+			for (int c = 1; c <= n; c++) {
+				int s = Math.min(pw / c, ph / ((n + c - 1) / c));
+				if (s > cell) {
+					cell = s;
+					cols = c;
 				}
-			} else {
-				g.setColor(Color.WHITE);
-				g.setFont(new Font(Font.SERIF, Font.BOLD, size / 2));
-				b = g.getFont().getStringBounds(message.title, g.getFontRenderContext()).getBounds();
-				g.drawString(message.title, rect.x + rect.width / 2 - b.width / 2, rect.y / 2 + b.height / 2);
-				g.setFont(new Font(Font.SERIF, Font.PLAIN, size / 3));
-				b = g.getFont().getStringBounds(message.text(), g.getFontRenderContext()).getBounds();
-				g.drawString(message.text(), rect.x + rect.width / 2 - b.width / 2, h - rect.y / 2 + b.height / 2);
 			}
+			int min = Math.max(24, Math.min(pw, ph) / 6);
+			if (cell < min) {
+				cols = Math.max(1, pw / min);
+				cell = Math.min(pw / cols, ph);
+			}
+			handCols = cols;
+			handCell = Math.max(1, cell);
+			handRows = (n + cols - 1) / cols;
+			handVisible = Math.max(1, Math.min(handRows, ph / handCell));
+			handFirst = Math.max(0, Math.min(handFirst, handRows - handVisible));
+			handBox.setBounds(w * 2 / 3 + (pw - cols * handCell) / 2, unit + (ph - handVisible * handCell) / 2,
+					cols * handCell, handVisible * handCell);
+		}
+		for (int i = 0; i < n; i++) {
+			Brick b = waiting[i];
+			if (!grid && handBricks[i] == b && (b == null || handRotations[i] == b.rotation))
+				continue;
+			handBricks[i] = b;
+			if (b == null)
+				continue;
+			int rot = b.rotation;
+			int minX = 0, minY = 0, maxX = 0, maxY = 0;
+			for (int k = 0; k < b.descr.size(); k++) {
+				minX = Math.min(minX, b.descr.x(k, rot));
+				maxX = Math.max(maxX, b.descr.x(k, rot));
+				minY = Math.min(minY, b.descr.y(k, rot));
+				maxY = Math.max(maxY, b.descr.y(k, rot));
+			}
+			int t = Math.max(1, Math.min(size, handCell * 4 / 5 / (1 + Math.max(maxX - minX, maxY - minY))));
+			handRotations[i] = rot;
+			handTile[i] = t;
+			handX[i] = (handCell - (1 + maxX - minX) * t) / 2 - minX * t;
+			handY[i] = (handCell - (1 + maxY - minY) * t) / 2 - minY * t;
 		}
+	}
 
-		display.setIcon(new ImageIcon(img));
+	// Scrolls the hand by the given number of rows; returns whether it moved
+	private boolean scrollHand(int rows) {
+		int first = Math.max(0, Math.min(handFirst + rows, handRows - handVisible));
+		if (first == handFirst)
+			return false;
+		handFirst = first;
+		return true;
+	}
+
+	// The atlas for tiles of the given size: the board's, or a smaller one for bricks in a crowded hand
+	private TileAtlas atlas(int size) {
+		if (atlas == null || atlas.brickset != brickset)
+			return null;
+		if (atlas.size == size)
+			return atlas;
+		if (resizing || size < 1 || size >= handAtlases.length)
+			return null;
+		if (handAtlases[size] == null)
+			handAtlases[size] = new TileAtlas(brickset, size, display.getGraphicsConfiguration());
+		return handAtlases[size];
+	}
+
+	// The waiting brick in the cell at the given point, or -1
+	private int brickAt(int px, int py) {
+		if (handCols == 0 || !handBox.contains(px, py))
+			return -1;
+		int i = ((py - handBox.y) / handCell + handFirst) * handCols + (px - handBox.x) / handCell;
+		return i < waiting.length && waiting[i] != null ? i : -1;
+	}
 
+	// Scales an image with good quality, halving its size in several steps when shrinking a lot
+	private static BufferedImage scaled(BufferedImage src, int w, int h) {
+		w = Math.max(1, w);
+		h = Math.max(1, h);
+		BufferedImage img = src;
+		int iw = src.getWidth();
+		int ih = src.getHeight();
+		do {
+			iw = iw / 2 >= w ? iw / 2 : w;
+			ih = ih / 2 >= h ? ih / 2 : h;
+			BufferedImage next = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = next.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, iw == w && ih == h ?
+					RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(img, 0, 0, iw, ih, null);
+			g.dispose();
+			img = next;
+		} while (iw != w || ih != h);
+		return img;
 	}
 
 	public String highscoreString() {
@@ -440,21 +3042,18 @@ public class Game {
 	public void checkGameOver() {
 		if (trash > 0)
 			return;
-		// check if we can place any brick anywhere
-		for (Brick b : selectedBrick == -1 ? waiting : new Brick[] { waiting[selectedBrick] }) {
-			for (int r = 0; r < 4; r++) {
-				Point[] pp = b.descr.occupies(r);
-				for (int i = 0; i < occupied.length; i++)
-					for (int j = 0; j < occupied[i].length; j++) {
-						boolean ok = true;
-						for (Point p : pp)
-							if (!occupied(p.x + i, p.y + j, false)) {
-								ok = false;
-								break;
-							}
-						if (ok)
-							return;
-					}
+		// check if we can place any brick anywhere, looking only into regions that are large enough
+		for (int i = 0; i < waiting.length; i++) {
+			Brick b = waiting[i];
+			if (b == null || (selectedBrick != -1 && i != selectedBrick))
+				continue;
+			for (int reg = regions.nextRegion(0); reg >= 0; reg = regions.nextRegion(reg + 1)) {
+				if (regions.size(reg) < b.descr.size())
+					continue;
+				Rectangle bounds = regions.bounds(reg, scratchRect);
+				for (int r = 0; r < 4; r++)
+					if (runs.fits(b.descr, r, bounds))
+						return;
 			}
 		}
 		int hp = -1;
@@ -474,9 +3073,9 @@ public class Game {
 					if ((e.getModifiersEx() | mask) != mask)
 						return;
 					if (e instanceof KeyEvent && ((KeyEvent)e).getKeyCode() == KeyEvent.VK_ESCAPE)
-						System.exit(0);
+						quit();
 					message = null;
-					menu = new Menu(occupied.length, occupied[0].length, brickset.name);
+					menu = new Menu(occupied.length, occupied[0].length, brickset.name, solvable);
 				}
 			};
 		}
@@ -493,16 +3092,18 @@ public class Game {
 							KeyEvent k = (KeyEvent)e;
 							if (k.getKeyCode() == KeyEvent.VK_ENTER) {
 								try {
-									PrintWriter write = new PrintWriter(new File("data/highscores"));
 									for (int i = highscores.length - 1; i > highscorePlace; i--) {
 										highscores[i] = highscores[i - 1];
 									}
 									highscores[highscorePlace] = new Highscore(input, points);
-									for (int i = 0; i < highscores.length; i++) {
-										write.println(highscores[i].name);
-										write.println(highscores[i].points);
+									if (!replayable) {
+										PrintWriter write = new PrintWriter(new File("data/highscores"));
+										for (int i = 0; i < highscores.length; i++) {
+											write.println(highscores[i].name);
+											write.println(highscores[i].points);
+										}
+										write.close();
 									}
-									write.close();
 								}
 								catch (Exception ex) {
 									System.out.println("Unable to save game highscores: " + ex);
@@ -532,9 +3133,9 @@ public class Game {
 						if ((e.getModifiersEx() | mask) != mask)
 							return;
 						if (e instanceof KeyEvent && ((KeyEvent)e).getKeyCode() == KeyEvent.VK_ESCAPE)
-							System.exit(0);
+							quit();
 						message = null;
-						menu = new Menu(occupied.length, occupied[0].length, brickset.name);
+						menu = new Menu(occupied.length, occupied[0].length, brickset.name, solvable);
 					}
 				}
 			};
@@ -560,8 +3161,7 @@ public class Game {
 					int mask = InputEvent.BUTTON1_DOWN_MASK | InputEvent.BUTTON2_DOWN_MASK | InputEvent.BUTTON3_DOWN_MASK;
 					if ((e.getModifiersEx() | mask) != mask)
 						return;
-					reset(false);
-					message = null;
+					nextBoard();
 				}
 			};
 			draw();
@@ -572,10 +3172,23 @@ public class Game {
 	}
 
 	public void save() {
+		if (replayable)
+			return;
+		if (slot == null)
+			slot = Saves.newName();
+		Saves.DIR.mkdirs();
+		if (!save(Saves.file(slot)))
+			return;
+		Saves.put(new Saves.Slot(slot, System.currentTimeMillis(), occupied.length, occupied[0].length, points,
+				brickset.name));
+		Saves.thumbnail(slot, occupied, image);
+	}
+	public boolean save(File f) {
 		try {
-			PrintWriter write = new PrintWriter(new File("data/save"));
+			PrintWriter write = new PrintWriter(f);
 			write.println(occupied.length + " " + occupied[0].length + " " + waiting.length + " " + points +
-					" " + trash + " " + selectedBrick);
+					" " + trash + " " + selectedBrick + " " + (solvable ? 1 : 0) + " " +
+					Long.toHexString(hash ^ Zobrist.points(points)));
 			write.println(currentImageName);
 			write.println(lastImageName);
 			write.println(brickset.name);
@@ -587,47 +3200,104 @@ public class Game {
 			}
 			for (int i = 0; i < waiting.length; i++)
 				write.println(waiting[i] == null ? "" : waiting[i].descr.id + "," + waiting[i].rotation);
+			if (undealt != null) {
+				String str = "";
+				for (BrickDescription d : undealt)
+					str += (str.isEmpty() ? "" : ",") + d.id;
+				write.println(str);
+			}
 			write.close();
+			return true;
 		}
 		catch (Exception e) {
 			System.out.println("Unable to save game because: " + e);
+			return false;
 		}
 	}
 
+	// Continues the game saved last, or the one saved by earlier versions of Mosaik
 	public boolean load() {
-		File f = new File("data/save");
+		if (load(new File("data/save")))
+			return true;
+		ArrayList<Saves.Slot> slots = Saves.list();
+		return !slots.isEmpty() && load(slots.get(0));
+	}
+	// The game leaves its slot while it is being played, and goes back there when it is saved again
+	public boolean load(Saves.Slot s) {
+		if (!load(Saves.file(s.name)))
+			return false;
+		Saves.remove(s.name);
+		slot = s.name;
+		return true;
+	}
+	public boolean load(File f) {
 		if (!f.isFile())
 			return false;
 		try {
+			// Everything is read and checked before any of it replaces the running game
 			java.util.List <String> lines = Files.readAllLines(f.toPath());
 			String[] data = lines.get(0).split(" ");
-			occupied = new boolean[Integer.valueOf(data[0])][Integer.valueOf(data[1])];
-			waiting = new Brick[Integer.valueOf(data[2])];
-			waitingRects = new Shape[waiting.length];
-			points = Long.valueOf(data[3]);
-			trash = Integer.valueOf(data[4]);
-			selectedBrick = Integer.valueOf(data[5]);
-			highlightBrick = -1;
-			currentImageName = lines.get(1);
-			lastImageName = lines.get(2);
-			image = ImageIO.read(new File("data/images", currentImageName));
-			brickset = new BrickSet(lines.get(3));
+			boolean[][] occ = new boolean[Integer.valueOf(data[0])][Integer.valueOf(data[1])];
+			Brick[] wait = new Brick[Integer.valueOf(data[2])];
+			long pts = Long.valueOf(data[3]);
+			int tr = Integer.valueOf(data[4]);
+			int sel = Integer.valueOf(data[5]);
+			boolean solv = data.length > 6 && data[6].equals("1");
+			String current = lines.get(1);
+			String last = lines.get(2);
+			BufferedImage img = headless ? null : readImage(current);
+			BrickSet bs = BrickSet.named(lines.get(3));
 			int line = 4;
-			for (int i = 0; i < occupied.length; i++) {
+			for (int i = 0; i < occ.length; i++) {
 				String l = lines.get(line++);
-				for (int j = 0; j < occupied[0].length; j++)
-					occupied[i][j] = l.charAt(j) == '1';
+				for (int j = 0; j < occ[0].length; j++)
+					occ[i][j] = l.charAt(j) == '1';
 			}
-			for (int i = 0; i < waiting.length; i++) {
+			for (int i = 0; i < wait.length; i++) {
 				String l = lines.get(line);
 				if (l.isEmpty())
-					waiting[i] = null;
+					wait[i] = null;
 				else {
 					data = lines.get(line).split(",");
-					waiting[i] = new Brick(brickset.get(Integer.valueOf(data[0])), Integer.valueOf(data[1]));
+					wait[i] = new Brick(bs.get(Integer.valueOf(data[0])), Integer.valueOf(data[1]));
 				}
 				line++;
 			}
+			ArrayList<BrickDescription> und = null;
+			if (solv) {
+				und = new ArrayList<>();
+				if (line < lines.size())
+					for (String id : lines.get(line).split(","))
+						if (!id.isEmpty())
+							und.add(bs.get(Integer.valueOf(id)));
+			}
+			long h = computeHash(occ, wait, sel, tr);
+			// Keep the file around if it was damaged, so it may be repaired by hand
+			data = lines.get(0).split(" ");
+			if (data.length > 7 && Long.parseUnsignedLong(data[7], 16) != (h ^ Zobrist.points(pts)))
+				throw new IOException("The saved game is corrupted");
+			occupied = occ;
+			waiting = wait;
+			points = pts;
+			trash = tr;
+			selectedBrick = sel;
+			solvable = solv;
+			highlightBrick = -1;
+			currentImageName = current;
+			lastImageName = last;
+			if (!headless)
+				image = img;
+			brickset = bs;
+			regions = new FreeRegions(occupied);
+			runs = new FreeRuns(occupied);
+			history.clear();
+			undealt = und;
+			if (solvable)
+				prepareTiling(brickset.name, occupied.length, occupied[0].length);
+			else
+				cancelTiling();
+			hash = h;
+			prepareSnap();
 		}
 		catch (Exception e) {
 			System.out.println("Unable to load game because: " + e);
@@ -642,13 +3312,13 @@ public class Game {
 
 	public void reset(boolean newGame) {
 		reset(newGame, occupied == null ? 15 : occupied.length, occupied == null ? 10 : occupied[0].length,
-				5, waiting == null ? 5 : waiting.length, DEFAULT_BRICKSET);
+				5, waiting == null ? 5 : waiting.length, DEFAULT_BRICKSET, solvable);
 	}
 
-	public void reset(boolean newGame, int w, int h, int tr, int wait, String bs) {
+	public void reset(boolean newGame, int w, int h, int tr, int wait, String bs, boolean solv) {
 		menu = null;
 		message = null;
-		File[] images = new File("data/images").listFiles();
+		File[] images = images();
 		int i;
 		switch(images.length) {
 			case 0:
@@ -663,14 +3333,15 @@ public class Game {
 				break;
 			default:
 				do {
-					i = (int)(images.length * Math.random());
+					i = random.nextInt(images.length);
 				} while (images[i].getName().equals(currentImageName) || images[i].getName().equals(lastImageName));
 				break;
 		}
 		lastImageName = currentImageName;
 		currentImageName = images[i].getName();
 		try {
-			image = ImageIO.read(images[i]);
+			if (!headless)
+				image = readImage(currentImageName);
 		}
 		catch (Exception e) {
 			System.out.println("ERROR: Unable to read image file »" + images[i].getAbsolutePath() + "«: " + e);
@@ -678,41 +3349,322 @@ public class Game {
 			return;
 		}
 		if (newGame) {
+			slot = null;
 			points = 0;
 			trash = tr;
-			brickset = new BrickSet(bs);
+			brickset = BrickSet.named(bs);
+			solvable = solv;
+			history.clear();
+		}
+		else {
+			trash++;
+		}
+		occupied = new boolean[w][h];
+		for (int x = 0; x < occupied.length; x++)
+			for (int y = 0; y < occupied[x].length; y++)
+				occupied[x][y] = true;
+		regions = new FreeRegions(occupied);
+		runs = new FreeRuns(occupied);
+		undealt = null;
+		if (solvable) {
+			/* Generating a tiling may take long for large bricksets, and waiting for it would freeze the game,
+			 * so unless one is ready, this board's bricks are dealt at random and the tiling is kept for the
+			 * next board. Only recorded games wait, to take the same course.
+			 */
+			Tiling t = null;
+			prepareTiling(brickset.name, w, h);
+			if (pendingTiling != null && (replayable || pendingTiling.isDone())) {
+				try {
+					t = pendingTiling.get();
+				}
+				catch (Exception e) {
+					System.out.println("Unable to generate a tiling for the board: " + e);
+				}
+				pendingTiling = null;
+				// The next board's tiling is computed while this one is being played
+				prepareTiling(brickset.name, w, h);
+			}
+			if (t != null) {
+				undealt = new ArrayList<>();
+				for (Brick b : t.bricks)
+					undealt.add(b.descr);
+			}
+		}
+		else
+			cancelTiling();
+		if (newGame)
+			waiting = new Brick[wait];
+		// In solvable mode the whole hand is dealt from the new tiling so that a perfect clear remains possible
+		for (int x = 0; x < waiting.length; x++)
+			if (newGame || waiting[x] == null || undealt != null)
+				waiting[x] = deal();
+		highlightBrick = -1;
+		selectedBrick = -1;
+		hash = computeHash();
+	}
+
+	/* Uses the version of the image from the image bundle that fits the window if there is one, avoiding the
+	 * decoding. The board's background is scaled from the bundle on its own, so this one is only used for
+	 * thumbnails and while resizing.
+	 */
+	private BufferedImage readImage(String name) throws IOException {
+		ImageBundle bundle = ImageBundle.get();
+		// Before the window exists, the smallest version does
+		BufferedImage img = bundle == null ? null : display == null ? bundle.copy(name, 0, 0) :
+				bundle.copy(name, display.getWidth(), display.getHeight());
+		return img != null ? img : ImageIO.read(new File("data/images", name));
+	}
+
+	private static File[] imageFiles;
+	private static synchronized File[] images() {
+		if (imageFiles == null)
+			imageFiles = new File("data/images").listFiles();
+		return imageFiles;
+	}
+
+	public void nextBoard() {
+		BoardSnapshot before = new BoardSnapshot();
+		reset(false);
+		message = null;
+		history.board(before, new BoardSnapshot());
+	}
+
+	public boolean undo() {
+		select(-1);
+		highlightBrick = -1;
+		return history.undo();
+	}
+
+	public boolean redo() {
+		select(-1);
+		highlightBrick = -1;
+		if (!history.redo())
+			return false;
+		checkGameOver();
+		return true;
+	}
+
+	// Restarts the estimate whenever the state changed, and stops it while the game is paused
+	private void estimate() {
+		if (estimator == null)
+			return;
+		if (menu != null || message != null)
+			estimator.stop();
+		else if (estimator.current() == null || estimator.current().key != hash)
+			estimator.start(hash, occupied, waiting, trash, brickset, undealt);
+	}
+
+	// Ends the program, or only the game when input is being replayed
+	private void quit() {
+		quit = true;
+		if (frame != null) {
+			Saves.flush();
+			System.exit(0);
+		}
+	}
+
+	public boolean over() {
+		return message != null && !message.allowSaving;
+	}
+
+	public long hash() {
+		return hash;
+	}
+
+	public long computeHash() {
+		return computeHash(occupied, waiting, selectedBrick, trash);
+	}
+	private static long computeHash(boolean[][] occupied, Brick[] waiting, int selectedBrick, int trash) {
+		long result = Zobrist.selected(selectedBrick) ^ Zobrist.trash(trash);
+		for (int x = 0; x < occupied.length; x++)
+			for (int y = 0; y < occupied[x].length; y++)
+				if (!occupied[x][y])
+					result ^= Zobrist.tile(x, y);
+		for (int i = 0; i < waiting.length; i++)
+			result ^= Zobrist.brick(i, waiting[i]);
+		return result;
+	}
+
+	// The following keep the hash up to date while changing the state
+	private void select(int i) {
+		hash ^= Zobrist.selected(selectedBrick) ^ Zobrist.selected(i);
+		selectedBrick = i;
+	}
+	private void setWaiting(int slot, Brick b) {
+		hash ^= Zobrist.brick(slot, waiting[slot]) ^ Zobrist.brick(slot, b);
+		waiting[slot] = b;
+	}
+	private void setTrash(int t) {
+		hash ^= Zobrist.trash(trash) ^ Zobrist.trash(t);
+		trash = t;
+	}
+	private void setTile(int x, int y, boolean free) {
+		if (occupied[x][y] != free)
+			hash ^= Zobrist.tile(x, y);
+		occupied[x][y] = free;
+		boardVersion++;
+	}
+
+	// Picks up the given waiting brick; returns false if this is not possible
+	public boolean pick(int i) {
+		if (selectedBrick != -1 || waiting[i] == null)
+			return false;
+		select(i);
+		prepareSnap();
+		checkGameOver();
+		return true;
+	}
+
+	// Rotates the selected brick clockwise by the given number of steps (negative for counterclockwise)
+	public void rotate(int steps) {
+		if (selectedBrick == -1)
+			return;
+		Brick b = waiting[selectedBrick];
+		hash ^= Zobrist.brick(selectedBrick, b);
+		b.rotation = ((b.rotation + steps) % 4 + 4) % 4;
+		hash ^= Zobrist.brick(selectedBrick, b);
+		prepareSnap();
+	}
+
+	// Places the selected brick with its centre on the given tile; returns false if this is not possible
+	public boolean place(int x, int y) {
+		if (!mayPlace(x, y))
+			return false;
+		int p = 0;
+		Brick b = waiting[selectedBrick];
+		for (int i = 0; i < b.descr.size(); i++) {
+			setTile(x + b.descr.x(i, b.rotation), y + b.descr.y(i, b.rotation), false);
+			points += p;
+			p++;
 		}
-		else {
-			trash++;
+		regions.filled(x + b.descr.x(0, b.rotation), y + b.descr.y(0, b.rotation));
+		for (int i = 0; i < b.descr.size(); i++)
+			runs.update(y + b.descr.y(i, b.rotation));
+		boolean fromTiling = undealt != null && !undealt.isEmpty();
+		setWaiting(selectedBrick, deal());
+		history.placed(selectedBrick, b, x, y, p * (p - 1) / 2, fromTiling);
+		select(-1);
+		checkComplete();
+		return true;
+	}
+
+	// Throws the selected brick into the bin; returns false if this is not possible
+	public boolean discard() {
+		if (selectedBrick == -1 || trash <= 0)
+			return false;
+		setTrash(trash - 1);
+		int p = 1;
+		for (int i = 0; i < waiting[selectedBrick].descr.size(); i++) {
+			points -= p;
+			p++;
 		}
-		occupied = new boolean[w][h];
-		for (int x = 0; x < occupied.length; x++)
-			for (int y = 0; y < occupied[x].length; y++)
-				occupied[x][y] = true;
-		if (newGame)
-			waiting = new Brick[wait];
-		waitingRects = new Shape[waiting.length];
-		for (int x = 0; x < waiting.length; x++)
-			if (newGame || waiting[x] == null)
-				waiting[x] = new Brick(brickset.random());
-		highlightBrick = -1;
-		selectedBrick = -1;
+		// Return the brick to the tiling so the board stays solvable
+		Brick b = waiting[selectedBrick];
+		int index = -1;
+		if (undealt != null) {
+			index = random.nextInt(undealt.size() + 1);
+			undealt.add(index, b.descr);
+		}
+		boolean fromTiling = undealt != null && !undealt.isEmpty();
+		setWaiting(selectedBrick, deal());
+		history.trashed(selectedBrick, b, index, -p * (p - 1) / 2, fromTiling);
+		select(-1);
+		checkGameOver();
+		return true;
+	}
+
+	/* Starts generating a tiling of the given board in the background, unless one is already pending for it.
+	 * Boards for which no tiling was found in time are not tried again, as that would most likely fail again.
+	 */
+	private void prepareTiling(String bs, int w, int h) {
+		String board = bs + " " + w + " " + h;
+		if (pendingTiling != null && board.equals(pendingTilingFor))
+			return;
+		cancelTiling();
+		if (untileable.contains(board))
+			return;
+		final long seed = random.nextLong();
+		pendingTilingFor = board;
+		pendingTiling = tilingGenerator.submit(() -> {
+			Tiling t = Tiling.generate(BrickSet.named(bs), w, h, new Random(seed));
+			if (t == null && !Thread.currentThread().isInterrupted())
+				untileable.add(board);
+			return t;
+		});
+	}
+	private void cancelTiling() {
+		if (pendingTiling != null)
+			pendingTiling.cancel(true);
+		pendingTiling = null;
+		pendingTilingFor = null;
+	}
+
+	private Brick deal() {
+		if (undealt != null && !undealt.isEmpty())
+			return new Brick(undealt.remove(undealt.size() - 1), random.nextInt(4));
+		return new Brick(brickset.random(random), random.nextInt(4));
+	}
+
+	// Creates a new game without a window, as used by the server
+	public Game(int w, int h, String bs) {
+		frame = null;
+		display = null;
+		headless = true;
+		random = new Random();
+		replayable = false;
+		currentImageName = "";
+		lastImageName = "";
+		int r = Math.max(1, w * h / 30);
+		reset(true, w, h, r, r, bs, false);
+	}
+
+	// Continues a saved game without a window
+	public Game(File save) throws IOException {
+		frame = null;
+		display = null;
+		headless = true;
+		random = new Random();
+		replayable = false;
+		currentImageName = "";
+		lastImageName = "";
+		if (!load(save))
+			throw new IOException("Unable to load " + save);
 	}
 
 	public Game() {
+		this(new Random(), false, true);
+	}
+
+	// Starts a new game at the menu whose course depends only on the seed and the input, for InputRecording
+	public Game(long seed, boolean window) {
+		this(new Random(seed), true, window);
+	}
+
+	private Game(Random r, boolean fresh, boolean window) {
+		headless = false;
+		random = r;
+		replayable = fresh;
 		currentImageName = "";
 		lastImageName = "";
-		if (!load()) {
+		if (fresh || !load()) {
 			reset(true);
-			menu = new Menu(15, 10, DEFAULT_BRICKSET);
+			menu = new Menu(15, 10, DEFAULT_BRICKSET, false);
 		}
 
-		frame = new JFrame("Mosaik");
+		frame = window ? new JFrame("Mosaik") : null;
 		display = new JLabel();
 
 		display.setPreferredSize(new Dimension(800, 600));
+		// Redraw in full quality once the window size has not changed for a moment
+		resizeTimer = new javax.swing.Timer(200, e -> {
+			resizing = false;
+			draw();
+		});
+		resizeTimer.setRepeats(false);
+		int cpus = Settings.getInt("cpus", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		if (cpus > 0 && window)
+			estimator = new Estimator(cpus, () -> SwingUtilities.invokeLater(this::draw));
 
-		frame.add(display);
 		display.addKeyListener(new KeyAdapter() {
 			public void keyPressed(KeyEvent e) {
 				if (menu != null) {
@@ -723,7 +3675,20 @@ public class Game {
 				}
 				else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
 					save();
-					menu = new Menu(occupied.length, occupied[0].length, brickset.name);
+					menu = new Menu(occupied.length, occupied[0].length, brickset.name, solvable);
+				}
+				else if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_Z) {
+					if (e.isShiftDown())
+						redo();
+					else
+						undo();
+				}
+				else if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_Y) {
+					redo();
+				}
+				else if (e.getKeyCode() == KeyEvent.VK_S) {
+					snap = !snap;
+					prepareSnap();
 				}
 				draw();
 			}
@@ -738,59 +3703,36 @@ public class Game {
 					message.function(m);
 				}
 				else if (selectedBrick == -1) {
-					if (highlightBrick != -1 && waiting[highlightBrick] != null) {
-						selectedBrick = highlightBrick;
+					if (highlightBrick != -1 && pick(highlightBrick))
 						highlightBrick = -1;
-						checkGameOver();
-					}
 				}
 				else if (m.isShiftDown()) {
-					if (modCtrl) {
-						waiting[selectedBrick].rotation += 2;
-						waiting[selectedBrick].rotation %= 4;
-					}
-					else {
-						waiting[selectedBrick].rotation += 3;
-						waiting[selectedBrick].rotation %= 4;
-					}
+					rotate(modCtrl ? 2 : 3);
 				}
 				else if (modCtrl) {
-					waiting[selectedBrick].rotation++;
-					waiting[selectedBrick].rotation %= 4;
-				}
-				else if (trashRect != null && trashRect.contains(m.getPoint())) {
-					trash --;
-					int p = 1;
-					for (int i = 0; i < waiting[selectedBrick].descr.size(); i++) {
-						points -= p;
-						p++;
-					}
-					waiting[selectedBrick] = new Brick(brickset.random());
-					selectedBrick = -1;
-					checkGameOver();
+					rotate(1);
+				}
+				else if (trashRect != null && trashRect.contains(m.getX(), m.getY())) {
+					discard();
 				}
 				else if (mayPlace()) {
-					int p = 0;
-					for (Point c : tilesAt()) {
-						occupied[c.x][c.y] = false;
-						points += p;
-						p++;
-					}
-					waiting[selectedBrick] = new Brick(brickset.random());
-					selectedBrick = -1;
-					checkComplete();
+					Point center = target();
+					place(center.x, center.y);
 				}
 				draw();
 			}
 		});
 		display.addMouseWheelListener(new MouseAdapter() {
 			public void mouseWheelMoved(MouseWheelEvent w) {
-				if (selectedBrick == -1 || message != null || menu != null)
+				if (message != null || menu != null)
 					return;
-				waiting[selectedBrick].rotation -= w.getWheelRotation();
-				while (waiting[selectedBrick].rotation < 0)
-					waiting[selectedBrick].rotation += 4;
-				waiting[selectedBrick].rotation %= 4;
+				if (selectedBrick == -1) {
+					if (!scrollHand(w.getWheelRotation()))
+						return;
+					highlightBrick = brickAt(w.getX(), w.getY());
+				}
+				else
+					rotate(-w.getWheelRotation());
 				draw();
 			}
 		});
@@ -803,18 +3745,16 @@ public class Game {
 				}
 				if (message != null)
 					return;
-				mousePos = m.getPoint();
+				if (mousePos == null)
+					mousePos = new Point();
+				mousePos.setLocation(m.getX(), m.getY());
 				if (selectedBrick != -1) {
 					if (highlightBrick != -1)
 						highlightBrick = -1;
 					draw();
 					return;
 				}
-				int sel = -1;
-				for (int i = 0; i < waitingRects.length; i++)
-					if (waitingRects[i] != null && waitingRects[i].contains(m.getPoint())) {
-						sel = i;
-					}
+				int sel = brickAt(m.getX(), m.getY());
 				if (sel == highlightBrick)
 					return;
 				highlightBrick = sel;
@@ -823,17 +3763,25 @@ public class Game {
 		});
 		display.addComponentListener(new ComponentAdapter() {
 			public void componentResized(ComponentEvent e) {
+				resizing = true;
+				resizeTimer.restart();
 				draw();
 			}
 		});
+		display.setFocusable(true);
+		if (!window) {
+			display.setSize(display.getPreferredSize());
+			return;
+		}
+		frame.add(display);
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
 				if (menu == null && (message == null || message.allowSaving))
 					save();
+				Saves.flush();
 				System.exit(0);
 			}
 		});
-		display.setFocusable(true);
 		frame.pack();
 		frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
 		frame.setLocationRelativeTo(null);
@@ -841,16 +3789,250 @@ public class Game {
 
 	}
 
+	/* The state of the hand and bin at the start or end of a board, recorded at board transitions.
+	 * Boards are always empty at the end and full at the start, so the tiles need not be stored.
+	 */
+	private class BoardSnapshot {
+		private final String currentImage, lastImage;
+		private final Brick[] hand;
+		private final int[] rotations;
+		private final int bin;
+		private final ArrayList<BrickDescription> tiling;
+
+		public BoardSnapshot() {
+			currentImage = currentImageName;
+			lastImage = lastImageName;
+			hand = waiting.clone();
+			rotations = new int[hand.length];
+			for (int i = 0; i < hand.length; i++)
+				rotations[i] = hand[i] == null ? 0 : hand[i].rotation;
+			bin = trash;
+			tiling = undealt == null ? null : new ArrayList<>(undealt);
+		}
+
+		public void restore(boolean free) {
+			if (!currentImage.equals(currentImageName) && !headless) {
+				try {
+					image = readImage(currentImage);
+				}
+				catch (Exception e) {
+					System.out.println("Unable to read image file »" + currentImage + "«: " + e);
+				}
+			}
+			currentImageName = currentImage;
+			lastImageName = lastImage;
+			for (int i = 0; i < hand.length; i++) {
+				waiting[i] = hand[i];
+				if (hand[i] != null)
+					hand[i].rotation = rotations[i];
+			}
+			trash = bin;
+			undealt = tiling == null ? null : new ArrayList<>(tiling);
+			for (boolean[] column : occupied)
+				Arrays.fill(column, free);
+			boardVersion++;
+			regions = new FreeRegions(occupied);
+			runs = new FreeRuns(occupied);
+			hash = computeHash();
+		}
+	}
+
+	/* Undo and redo history. Every move is stored as a few ints in a ring buffer, together with the
+	 * brick objects it took out of and put into the hand, so that moves can be undone and redone
+	 * without allocating anything. Only board transitions store snapshots of the hand.
+	 */
+	private class History {
+		private static final int PLACE = 0;
+		private static final int TRASH = 1;
+		private static final int BOARD = 2;
+
+		private static final int TYPE = 0;
+		private static final int SLOT = 1;
+		private static final int ROTATION = 2;
+		private static final int X = 3;         // For trashed bricks: index at which the brick was returned to the tiling
+		private static final int Y = 4;
+		private static final int POINTS = 5;
+		private static final int FROM_TILING = 6;
+		private static final int FIELDS = 7;
+
+		private final int depth;
+		private final int[] moves;
+		private final Brick[] bricks;       // The brick taken out of the hand and its replacement
+		private final BoardSnapshot[] boards; // Before and after each board transition
+		private int first, undoable, redoable;
+
+		public History(int d) {
+			depth = Math.max(0, d);
+			moves = new int[depth * FIELDS];
+			bricks = new Brick[depth * 2];
+			boards = new BoardSnapshot[depth * 2];
+		}
+
+		public void clear() {
+			undoable = redoable = 0;
+			Arrays.fill(bricks, null);
+			Arrays.fill(boards, null);
+		}
+
+		public void placed(int slot, Brick b, int x, int y, int pts, boolean fromTiling) {
+			int e = push(PLACE, slot, b);
+			if (e < 0)
+				return;
+			moves[e * FIELDS + X] = x;
+			moves[e * FIELDS + Y] = y;
+			moves[e * FIELDS + POINTS] = pts;
+			moves[e * FIELDS + FROM_TILING] = fromTiling ? 1 : 0;
+		}
+
+		public void trashed(int slot, Brick b, int tilingIndex, int pts, boolean fromTiling) {
+			int e = push(TRASH, slot, b);
+			if (e < 0)
+				return;
+			moves[e * FIELDS + X] = tilingIndex;
+			moves[e * FIELDS + POINTS] = pts;
+			moves[e * FIELDS + FROM_TILING] = fromTiling ? 1 : 0;
+		}
+
+		public void board(BoardSnapshot before, BoardSnapshot after) {
+			int e = push(BOARD, -1, null);
+			if (e < 0)
+				return;
+			boards[e * 2] = before;
+			boards[e * 2 + 1] = after;
+		}
+
+		private int push(int type, int slot, Brick b) {
+			if (depth == 0)
+				return -1;
+			redoable = 0;
+			if (undoable == depth) {
+				first = (first + 1) % depth;
+				undoable--;
+			}
+			int e = (first + undoable) % depth;
+			undoable++;
+			moves[e * FIELDS + TYPE] = type;
+			moves[e * FIELDS + SLOT] = slot;
+			moves[e * FIELDS + ROTATION] = b == null ? 0 : b.rotation;
+			bricks[e * 2] = b;
+			bricks[e * 2 + 1] = slot < 0 ? null : waiting[slot];
+			boards[e * 2] = boards[e * 2 + 1] = null;
+			return e;
+		}
+
+		private int entry(int k) {
+			return (first + k) % depth;
+		}
+
+		public boolean undo() {
+			if (undoable == 0)
+				return false;
+			int e = entry(undoable - 1);
+			if (moves[e * FIELDS + TYPE] == BOARD) {
+				// Undo the move that completed the board along with the transition
+				if (undoable < 2)
+					return false;
+				revert(e);
+				undoable--;
+				redoable++;
+				e = entry(undoable - 1);
+			}
+			revert(e);
+			undoable--;
+			redoable++;
+			return true;
+		}
+
+		public boolean redo() {
+			if (redoable == 0)
+				return false;
+			apply(entry(undoable));
+			undoable++;
+			redoable--;
+			if (redoable > 0 && moves[entry(undoable) * FIELDS + TYPE] == BOARD) {
+				apply(entry(undoable));
+				undoable++;
+				redoable--;
+			}
+			return true;
+		}
+
+		private void revert(int e) {
+			int o = e * FIELDS;
+			if (moves[o + TYPE] == BOARD) {
+				boards[e * 2].restore(false);
+				return;
+			}
+			int slot = moves[o + SLOT];
+			Brick b = bricks[e * 2];
+			// The replacement may have been rotated since, so remember it as it is now
+			bricks[e * 2 + 1] = waiting[slot];
+			if (moves[o + FROM_TILING] != 0)
+				undealt.add(waiting[slot].descr);
+			b.rotation = moves[o + ROTATION];
+			setWaiting(slot, b);
+			if (moves[o + TYPE] == PLACE) {
+				for (int i = 0; i < b.descr.size(); i++) {
+					int x = moves[o + X] + b.descr.x(i, b.rotation);
+					int y = moves[o + Y] + b.descr.y(i, b.rotation);
+					setTile(x, y, true);
+					regions.freed(x, y);
+					runs.update(y);
+				}
+			}
+			else {
+				if (moves[o + X] >= 0)
+					undealt.remove(moves[o + X]);
+				setTrash(trash + 1);
+			}
+			points -= moves[o + POINTS];
+		}
+
+		private void apply(int e) {
+			int o = e * FIELDS;
+			if (moves[o + TYPE] == BOARD) {
+				boards[e * 2 + 1].restore(true);
+				return;
+			}
+			int slot = moves[o + SLOT];
+			Brick b = bricks[e * 2];
+			// The brick may have been rotated in the hand since it was put back
+			setWaiting(slot, bricks[e * 2 + 1]);
+			b.rotation = moves[o + ROTATION];
+			if (moves[o + TYPE] == PLACE) {
+				for (int i = 0; i < b.descr.size(); i++)
+					setTile(moves[o + X] + b.descr.x(i, b.rotation), moves[o + Y] + b.descr.y(i, b.rotation), false);
+				regions.filled(moves[o + X] + b.descr.x(0, b.rotation), moves[o + Y] + b.descr.y(0, b.rotation));
+				for (int i = 0; i < b.descr.size(); i++)
+					runs.update(moves[o + Y] + b.descr.y(i, b.rotation));
+			}
+			else {
+				if (moves[o + X] >= 0)
+					undealt.add(moves[o + X], b.descr);
+				setTrash(trash - 1);
+			}
+			if (moves[o + FROM_TILING] != 0)
+				undealt.remove(undealt.size() - 1);
+			points += moves[o + POINTS];
+		}
+	}
+
 	public class Menu {
 		private int width, height;
 		private int selection;
 		private int brickset;
+		private boolean solvable;
 		private final boolean load;
+		private final ArrayList<Saves.Slot> slots;
+		private int slot;
 		private final String[] bricksets;
 		private final String[] highscoreString;
 
 		private Rectangle loadRect, startRect, quitRect, bricksetRect, bricksetLeftRect, bricksetRightRect,
-				widthRect, heightRect, widthLeftRect, widthRightRect, heightLeftRect, heightRightRect;
+				widthRect, heightRect, widthLeftRect, widthRightRect, heightLeftRect, heightRightRect, modeRect,
+				loadLeftRect, loadRightRect;
+		private final Overlay overlay = new Overlay(14);
+		private BufferedImage shownThumbnail;
 
 		public static final int MIN_WIDTH = 5;
 		public static final int MIN_HEIGHT = 5;
@@ -860,12 +4042,15 @@ public class Game {
 		 * 2|1 Width
 		 * 3|2 Height
 		 * 4|3 Brickset
-		 * 5|4 Quit
+		 * 5|4 Mode
+		 * 6|5 Quit
 		 */
-		public Menu(int w, int h, String bricks) {
+		public Menu(int w, int h, String bricks, boolean solv) {
 			width = w;
 			height = h;
-			load = new File("data/save").isFile();
+			solvable = solv;
+			slots = replayable ? new ArrayList<>() : Saves.list();
+			load = !slots.isEmpty();
 			selection = 0;
 			bricksets = new File("data/bricks").list();
 			brickset = 0;
@@ -876,21 +4061,39 @@ public class Game {
 				}
 			}
 			highscoreString = highscoreString().split("\n");
+			prefetch();
+		}
+		// Starts generating a tiling for the chosen board, so that it is most likely ready once the game starts
+		private void prefetch() {
+			if (solvable)
+				prepareTiling(bricksets[brickset], width, height);
 		}
 		public boolean handleMouse(MouseEvent m) {
 			boolean click = m.getClickCount() > 0;
 			int sel = selection;
-			if (loadRect != null && loadRect.contains(m.getPoint())) {
+			if (loadLeftRect != null && loadLeftRect.contains(m.getPoint())) {
+				selection = 0;
+				if (click) prevSlot();
+			}
+			else if (loadRightRect != null && loadRightRect.contains(m.getPoint())) {
+				selection = 0;
+				if (click) nextSlot();
+			}
+			else if (loadRect != null && loadRect.contains(m.getPoint())) {
 				selection = 0;
-				if (click) load();
+				if (click) load(slots.get(slot));
 			}
 			else if (startRect != null && startRect.contains(m.getPoint())) {
 				selection = load ? 1 : 0;
 				if (click) start();
 			}
 			else if (quitRect != null && quitRect.contains(m.getPoint())) {
+				selection = load ? 6 : 5;
+				if (click) quit();
+			}
+			else if (modeRect != null && modeRect.contains(m.getPoint())) {
 				selection = load ? 5 : 4;
-				if (click) System.exit(0);
+				if (click) solvable = !solvable;
 			}
 			else if (bricksetLeftRect != null && bricksetLeftRect.contains(m.getPoint())) {
 				selection = load ? 4 : 3;
@@ -925,20 +4128,25 @@ public class Game {
 			else if (heightRect != null && heightRect.contains(m.getPoint())) {
 				selection = load ? 3 : 2;
 			}
+			if (click && menu == this)
+				prefetch();
 			return sel != selection || click;
 		}
 		public void handleKey(KeyEvent e) {
 			switch (e.getKeyCode()) {
 				case KeyEvent.VK_UP:
-					selection += load ? 5 : 4;
-					selection %= load ? 6 : 5;
+					selection += load ? 6 : 5;
+					selection %= load ? 7 : 6;
 					break;
 				case KeyEvent.VK_DOWN:
 					selection++;
-					selection %= load ? 6 : 5;
+					selection %= load ? 7 : 6;
 					break;
 				case KeyEvent.VK_LEFT:
 					switch (selection - (load ? 1 : 0)) {
+						case -1:
+							prevSlot();
+							break;
 						case 1:
 							widthLess();
 							break;
@@ -948,12 +4156,18 @@ public class Game {
 						case 3:
 							prevBrickset();
 							break;
+						case 4:
+							solvable = !solvable;
+							break;
 						default:
 							break;
 					}
 					break;
 				case KeyEvent.VK_RIGHT:
 					switch (selection - (load ? 1 : 0)) {
+						case -1:
+							nextSlot();
+							break;
 						case 1:
 							width++;
 							break;
@@ -963,23 +4177,26 @@ public class Game {
 						case 3:
 							nextBrickset();
 							break;
+						case 4:
+							solvable = !solvable;
+							break;
 						default:
 							break;
 					}
 					break;
 				case KeyEvent.VK_ESCAPE:
-					System.exit(0);
+					quit();
 					break;
 				case KeyEvent.VK_ENTER:
 					switch (selection - (load ? 1 : 0)) {
 						case 0:
 							start();
 							break;
-						case 4:
-							System.exit(0);
+						case 5:
+							quit();
 							break;
 						case -1:
-							load();
+							load(slots.get(slot));
 							break;
 						default:
 							break;
@@ -988,6 +4205,17 @@ public class Game {
 				default:
 					break;
 			}
+			// Not once the menu was left, which may have been for a saved game of another size
+			if (menu == this)
+				prefetch();
+		}
+		private void nextSlot() {
+			slot++;
+			slot %= slots.size();
+		}
+		private void prevSlot() {
+			slot += slots.size() - 1;
+			slot %= slots.size();
 		}
 		private void nextBrickset() {
 			brickset++;
@@ -1007,11 +4235,36 @@ public class Game {
 		}
 		private void start() {
 			int r = (int)Math.round(width * height / 30);
-			reset(true, width, height, r, r, bricksets[brickset]);
+			reset(true, width, height, r, r, bricksets[brickset], solvable);
 		}
+		// Renders the menu again only when it shows something else, which also updates the areas that react to the mouse
 		public void draw(Graphics2D g, Rectangle rect) {
+			int[] state = overlay.state;
+			state[6] = tilesize();
+			state[7] = selection;
+			state[8] = width;
+			state[9] = height;
+			state[10] = brickset;
+			state[11] = solvable ? 1 : 0;
+			state[12] = slot;
+			state[13] = occupied[0].length;
+			// The thumbnail of a slot that was just saved may only arrive after the menu was first drawn
+			BufferedImage thumbnail = load ? Saves.thumbnail(slots.get(slot).name) : null;
+			if (thumbnail != shownThumbnail) {
+				shownThumbnail = thumbnail;
+				overlay.invalidate();
+			}
+			Graphics2D og = overlay.begin(g, rect, display.getWidth(), display.getHeight());
+			if (og != null) {
+				render(og, new Rectangle(rect));
+				overlay.finish(og);
+			}
+			overlay.draw(g);
+		}
+		private void render(Graphics2D g, Rectangle rect) {
 			loadRect = startRect = quitRect = bricksetRect = bricksetLeftRect = bricksetRightRect = widthRect =
-					heightRect = widthLeftRect = widthRightRect = heightLeftRect = heightRightRect = null;
+					heightRect = widthLeftRect = widthRightRect = heightLeftRect = heightRightRect = modeRect =
+					loadLeftRect = loadRightRect = null;
 
 			g.setColor(new Color(0x7F000000, true));
 			g.fill(rect);
@@ -1026,17 +4279,30 @@ public class Game {
 			Rectangle b = g.getFont().getStringBounds(str, g.getFontRenderContext()).getBounds();
 			g.drawString(str, rect.x + rect.width / 2 - b.width / 2, rect.y + size);
 			ArrayList<String> text = new ArrayList<>();
-			if (load) text.add("Continue saved game");
+			if (load) {
+				Saves.Slot s = slots.get(slot);
+				text.add("Continue: " + (slots.size() > 1 ? "« " : "") + s.brickset + " " + s.width + "×" + s.height +
+						", " + s.points + " points" + (slots.size() > 1 ? " »" : ""));
+			}
 			text.add("Start!");
 			text.add("Width: " + (width > MIN_WIDTH ? "« " : "") + width + " »");
 			text.add("Height: " + (height > MIN_HEIGHT ? "« " : "") + height + " »");
 			text.add("Brickset: " + (bricksets.length > 1 ? "« " : "") + bricksets[brickset] +
 					(bricksets.length > 1 ? " »" : ""));
+			text.add("Mode: « " + (solvable ? "Solvable" : "Classic") + " »");
 			text.add("Quit");
 			for (int i = 0; i < text.size(); i++) {
 				g.setFont(new Font(Font.SERIF, i == selection ? Font.BOLD : Font.PLAIN, size / 3));
 				b = g.getFont().getStringBounds(text.get(i), g.getFontRenderContext()).getBounds();
 				g.drawString(text.get(i), rect.x + rect.width / 2 - b.width / 2, rect.y + size * (i + 2));
+				BufferedImage thumbnail = load && i == 0 ? Saves.thumbnail(slots.get(slot).name) : null;
+				if (thumbnail != null) {
+					// The saved board, as high as a line of the menu, in front of its description
+					int th = size * 4 / 5;
+					int tw = thumbnail.getWidth() * th / thumbnail.getHeight();
+					g.drawImage(thumbnail, rect.x + rect.width / 2 - b.width / 2 - tw - size / 4,
+							rect.y + size * (i + 2) - size / 8 - th / 2, tw, th, null);
+				}
 				Rectangle r = new Rectangle(rect.x, rect.y + size * (i + 1) + size / 2, rect.width, size);
 				switch (i) {
 					case 0:
@@ -1048,8 +4314,10 @@ public class Game {
 					case 3:
 						if (load) heightRect = r; else bricksetRect = r; break;
 					case 4:
-						if (load) bricksetRect = r; else quitRect = r; break;
+						if (load) bricksetRect = r; else modeRect = r; break;
 					case 5:
+						if (load) modeRect = r; else quitRect = r; break;
+					case 6:
 						quitRect = r; break;
 					default:
 						break;
@@ -1062,6 +4330,11 @@ public class Game {
 			heightRightRect = new Rectangle(heightRect.x + heightRect.width * 2 / 3,
 					heightRect.y, heightRect.width / 3, heightRect.height);
 			bricksetLeftRect = new Rectangle(bricksetRect.x, bricksetRect.y, bricksetRect.width / 3, bricksetRect.height);
+			if (loadRect != null && slots.size() > 1) {
+				loadLeftRect = new Rectangle(loadRect.x, loadRect.y, loadRect.width / 3, loadRect.height);
+				loadRightRect = new Rectangle(loadRect.x + loadRect.width * 2 / 3,
+						loadRect.y, loadRect.width / 3, loadRect.height);
+			}
 			bricksetRightRect = new Rectangle(bricksetRect.x + bricksetRect.width * 2 / 3,
 					bricksetRect.y, bricksetRect.width / 3, bricksetRect.height);
 
@@ -1082,6 +4355,488 @@ public class Game {
 		}
 	}
 
+	/* Hosts many independent games without windows, one per connection, via a line-based protocol.
+	 * Each command is answered with exactly one line, either the game state or »error <reason>«:
+	 *   · new <width> <height> [<brickset>] – start a new game, saving the current one for »resume«
+	 *   · resume <id>                       – continue a saved game, saving the current one first
+	 *   · pick <i>                          – pick up the i-th waiting brick
+	 *   · rotate <steps>                    – rotate the held brick clockwise
+	 *   · place <x> <y>                     – place the held brick with its centre on the given tile
+	 *   · trash                             – throw the held brick into the bin
+	 *   · state                             – just report the game state
+	 *   · quit                              – close the connection, saving the game for »resume«
+	 *   · close                             – close the connection without saving
+	 * Closing the connection in any other way also saves the game, just like closing the window does.
+	 *
+	 * The game state line reads:
+	 *   state <id> <play|over> <points> <trash> <selected> <width> <height> <waiting> <board>
+	 * where <waiting> lists »<brick id>:<rotation>« for every waiting brick separated by commas, and
+	 * <board> lists each column of the board as in save files (1 = free), separated by slashes.
+	 */
+	public static class Server {
+		public static final int DEFAULT_PORT = 4711;
+		public static final int MAX_SIZE = 1000;
+
+		private final int port;
+		private long nextId;
+
+		public Server(int p) {
+			port = p;
+			nextId = System.currentTimeMillis();
+		}
+
+		// Uses one virtual thread per task where the JVM supports them (Java 21 or later)
+		public static ExecutorService executor() {
+			try {
+				return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (Exception e) {
+				return Executors.newCachedThreadPool();
+			}
+		}
+
+		public void run() throws IOException {
+			new File("data/sessions").mkdirs();
+			ExecutorService connections = executor();
+			try (ServerSocket server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress())) {
+				System.out.println("Mosaik server listening on port " + server.getLocalPort());
+				while (true) {
+					final Socket s = server.accept();
+					connections.execute(() -> serve(s));
+				}
+			}
+		}
+
+		private synchronized String newId() {
+			return Long.toString(nextId++, 36);
+		}
+
+		private static File sessionFile(String id) throws IOException {
+			if (!id.matches("[0-9a-z]+"))
+				throw new IOException("Invalid session id »" + id + "«");
+			return new File("data/sessions", id);
+		}
+
+		private void serve(Socket socket) {
+			Game game = null;
+			String id = null;
+			try (Socket s = socket;
+					BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter out = new PrintWriter(new BufferedWriter(
+							new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+				s.setTcpNoDelay(true);
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] cmd = line.trim().split(" +");
+					if (cmd[0].equals("quit"))
+						break;
+					if (cmd[0].equals("close")) {
+						game = null;
+						break;
+					}
+					String reply;
+					try {
+						switch (cmd[0]) {
+							case "new": {
+								int w = Integer.valueOf(cmd[1]);
+								int h = Integer.valueOf(cmd[2]);
+								String bs = cmd.length > 3 ? cmd[3] : DEFAULT_BRICKSET;
+								if (w < Menu.MIN_WIDTH || h < Menu.MIN_HEIGHT || w > MAX_SIZE || h > MAX_SIZE)
+									throw new IllegalArgumentException("Invalid board size");
+								if (!Arrays.asList(new File("data/bricks").list()).contains(bs))
+									throw new IllegalArgumentException("Unknown brickset »" + bs + "«");
+								leave(game, id);
+								game = new Game(w, h, bs);
+								id = newId();
+								break;
+							}
+							case "resume": {
+								File f = sessionFile(cmd[1]);
+								// Saved first, so that the current game may be resumed again as well
+								leave(game, id);
+								game = new Game(f);
+								id = cmd[1];
+								break;
+							}
+							default:
+								if (game == null)
+									throw new IllegalStateException("No game in progress");
+								if (!game.over() && !perform(game, cmd))
+									throw new IllegalStateException("Move not possible");
+								break;
+						}
+						reply = state(game, id);
+					}
+					catch (Exception e) {
+						reply = "error " + (e.getMessage() == null ? e.toString() : e.getMessage());
+					}
+					out.println(reply);
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				// Connection lost, handled like a regular quit
+			}
+			leave(game, id);
+		}
+
+		// Saves the game of a session that is left, unless it is over
+		private static void leave(Game game, String id) {
+			if (game != null && !game.over()) {
+				try {
+					game.save(sessionFile(id));
+				}
+				catch (IOException e) {
+					System.out.println("Unable to save session " + id + ": " + e);
+				}
+			}
+		}
+
+		private static boolean perform(Game game, String[] cmd) {
+			boolean result;
+			switch (cmd[0]) {
+				case "pick":
+					result = game.pick(Integer.valueOf(cmd[1]));
+					break;
+				case "rotate":
+					if (game.selectedBrick == -1)
+						return false;
+					game.rotate(Integer.valueOf(cmd[1]));
+					return true;
+				case "place":
+					result = game.place(Integer.valueOf(cmd[1]), Integer.valueOf(cmd[2]));
+					break;
+				case "trash":
+					result = game.discard();
+					break;
+				case "state":
+					return true;
+				default:
+					throw new IllegalArgumentException("Unknown command »" + cmd[0] + "«");
+			}
+			// A completed board is continued right away
+			if (game.message != null && game.message.allowSaving)
+				game.nextBoard();
+			return result;
+		}
+
+		public static String state(Game game, String id) {
+			StringBuilder str = new StringBuilder("state ");
+			str.append(id).append(' ').append(game.over() ? "over" : "play").append(' ').append(game.points)
+					.append(' ').append(game.trash).append(' ').append(game.selectedBrick)
+					.append(' ').append(game.occupied.length).append(' ').append(game.occupied[0].length).append(' ');
+			for (int i = 0; i < game.waiting.length; i++) {
+				if (i > 0)
+					str.append(',');
+				if (game.waiting[i] == null)
+					str.append('-');
+				else
+					str.append(game.waiting[i].descr.id).append(':').append(game.waiting[i].rotation);
+			}
+			str.append(' ');
+			for (int i = 0; i < game.occupied.length; i++) {
+				if (i > 0)
+					str.append('/');
+				for (boolean b : game.occupied[i])
+					str.append(b ? '1' : '0');
+			}
+			return str.toString();
+		}
+	}
+
+	/* Plays many games against a running server at once, each on its own connection, making
+	 * random moves, and reports the distribution of the time the server took to answer a move.
+	 */
+	public static class LoadGenerator {
+		public static void run(int port, int sessions, int moves) throws Exception {
+			ExecutorService pool = Server.executor();
+			ArrayList<Future<long[]>> results = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < sessions; i++)
+				results.add(pool.submit(() -> play(port, moves)));
+			long[] all = new long[sessions * moves];
+			int n = 0;
+			for (Future<long[]> f : results) {
+				long[] l = f.get();
+				System.arraycopy(l, 0, all, n, l.length);
+				n += l.length;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			pool.shutdown();
+			Arrays.sort(all, 0, n);
+			int cores = Runtime.getRuntime().availableProcessors();
+			System.out.printf("%d sessions, %d moves in %.2f s (%.0f moves/s)%n", sessions, n, seconds, n / seconds);
+			System.out.printf("Move latency: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+					all[n / 2] / 1e6, all[Math.min(n - 1, (int)(n * 0.99))] / 1e6, all[n - 1] / 1e6);
+			// The server listens on the loopback interface, so it shares these cores with the load generator
+			System.out.printf("%.0f moves/s per core (%d cores)%n", n / seconds / cores, cores);
+		}
+
+		private static long[] play(int port, int moves) throws IOException {
+			Random rnd = new Random();
+			long[] latencies = new long[moves];
+			try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+					BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter out = new PrintWriter(new BufferedWriter(
+							new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+				s.setTcpNoDelay(true);
+				String newGame = "new 15 10 " + DEFAULT_BRICKSET;
+				out.println(newGame);
+				out.flush();
+				String[] state = in.readLine().split(" ");
+				for (int m = 0; m < moves; m++) {
+					String cmd;
+					if (state[2].equals("over")) {
+						cmd = newGame;
+					}
+					else if (state[5].equals("-1")) {
+						cmd = "pick " + rnd.nextInt(state[8].split(",").length);
+					}
+					else if (rnd.nextInt(10) == 0) {
+						cmd = !state[4].equals("0") && rnd.nextBoolean() ? "trash" : "rotate " + (1 + rnd.nextInt(3));
+					}
+					else {
+						// Aim at a random free tile
+						String[] columns = state[9].split("/");
+						int x, y;
+						do {
+							x = rnd.nextInt(columns.length);
+							y = rnd.nextInt(columns[x].length());
+						} while (columns[x].charAt(y) != '1');
+						cmd = "place " + x + " " + y;
+					}
+					long t = System.nanoTime();
+					out.println(cmd);
+					out.flush();
+					String reply = in.readLine();
+					latencies[m] = System.nanoTime() - t;
+					if (reply == null)
+						throw new IOException("Connection closed by server");
+					if (reply.startsWith("state "))
+						state = reply.split(" ");
+				}
+				out.println("close");
+				out.flush();
+			}
+			return latencies;
+		}
+	}
+
+	/* Records the input a game window receives, to replay it later against a game without a window and
+	 * report how long every event took to handle and to draw. Recording and replay both start at the menu
+	 * of a new game with the same seed, so the replayed game takes exactly the same course as long as
+	 * data/bricks, data/images, data/highscores and data/settings are the same. Events are replayed one
+	 * after the other on the event dispatch thread, as fast as possible.
+	 *
+	 * File format: a header line »mosaik-input <seed> <width> <height>«, then one line per event, starting
+	 * with the nanoseconds since the recording started:
+	 *   · <t> key <key code> <key char> <modifiers>
+	 *   · <t> press <x> <y> <button> <click count> <modifiers>
+	 *   · <t> move <x> <y> <modifiers>
+	 *   · <t> wheel <x> <y> <rotation> <modifiers>
+	 *   · <t> resize <width> <height>
+	 */
+	public static class InputRecording {
+		private static final String[] KINDS = { "key", "press", "move", "wheel", "resize" };
+
+		public static void record(File f) throws IOException {
+			long seed = new Random().nextLong();
+			PrintWriter out = new PrintWriter(Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8), true);
+			Game game = new Game(seed, true);
+			JLabel d = game.display;
+			long start = System.nanoTime();
+			out.println("mosaik-input " + seed + " " + d.getPreferredSize().width + " " + d.getPreferredSize().height);
+			d.addKeyListener(new KeyAdapter() {
+				public void keyPressed(KeyEvent e) {
+					out.println((System.nanoTime() - start) + " key " + e.getKeyCode() + " " + (int)e.getKeyChar() +
+							" " + e.getModifiersEx());
+				}
+			});
+			d.addMouseListener(new MouseAdapter() {
+				public void mousePressed(MouseEvent m) {
+					out.println((System.nanoTime() - start) + " press " + m.getX() + " " + m.getY() + " " +
+							m.getButton() + " " + m.getClickCount() + " " + m.getModifiersEx());
+				}
+			});
+			d.addMouseMotionListener(new MouseAdapter() {
+				public void mouseMoved(MouseEvent m) {
+					out.println((System.nanoTime() - start) + " move " + m.getX() + " " + m.getY() + " " + m.getModifiersEx());
+				}
+			});
+			d.addMouseWheelListener(new MouseAdapter() {
+				public void mouseWheelMoved(MouseWheelEvent w) {
+					out.println((System.nanoTime() - start) + " wheel " + w.getX() + " " + w.getY() + " " +
+							w.getWheelRotation() + " " + w.getModifiersEx());
+				}
+			});
+			d.addComponentListener(new ComponentAdapter() {
+				public void componentResized(ComponentEvent e) {
+					out.println((System.nanoTime() - start) + " resize " + d.getWidth() + " " + d.getHeight());
+				}
+			});
+		}
+
+		/* Replays a recording. Fails if the 99th percentile of the time per event exceeds limitMillis, or the
+		 * median of the bytes allocated per event exceeds limitBytes, unless the limit is negative. It is first
+		 * played the given number of times without measuring, each time with a new game, so that short
+		 * recordings are measured once the code has been compiled.
+		 */
+		public static void replay(File f, double limitMillis, long limitBytes, int warmups) throws Exception {
+			java.util.List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+			String[] header = lines.get(0).split(" ");
+			if (!header[0].equals("mosaik-input"))
+				throw new IOException("Not an input recording: " + f);
+			for (int i = 0; i < warmups; i++) {
+				Game g = start(header);
+				EventListener[][] listeners = listeners(g);
+				for (String line : lines.subList(1, lines.size())) {
+					if (g.quit)
+						break;
+					String[] e = line.split(" ");
+					int kind = Arrays.asList(KINDS).indexOf(e[1]);
+					if (kind < 0)
+						throw new IOException("Unknown event \"" + line + "\"");
+					AWTEvent event = event(g, e);
+					SwingUtilities.invokeAndWait(() -> dispatch(g, event, listeners[kind], e));
+				}
+			}
+			Game g = start(header);
+			EventListener[][] listeners = listeners(g);
+			int n = lines.size() - 1;
+			long[][] handling = new long[KINDS.length][n];
+			long[][] drawing = new long[KINDS.length][n];
+			long[][] allocated = new long[KINDS.length][n];
+			long[] total = new long[n];
+			long[] totalAllocated = new long[n];
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+					java.lang.management.ManagementFactory.getThreadMXBean();
+			int[] count = new int[KINDS.length];
+			int events = 0;
+			for (String line : lines.subList(1, lines.size())) {
+				if (g.quit)
+					break;
+				String[] e = line.split(" ");
+				int kind = Arrays.asList(KINDS).indexOf(e[1]);
+				if (kind < 0)
+					throw new IOException("Unknown event \"" + line + "\"");
+				AWTEvent event = event(g, e);
+				long[] times = new long[3];
+				SwingUtilities.invokeAndWait(() -> {
+					long id = Thread.currentThread().getId();
+					long bytes = threads.getThreadAllocatedBytes(id);
+					long rendered = g.renderTime;
+					long start = System.nanoTime();
+					dispatch(g, event, listeners[kind], e);
+					times[0] = System.nanoTime() - start;
+					times[1] = g.renderTime - rendered;
+					times[2] = threads.getThreadAllocatedBytes(id) - bytes;
+				});
+				handling[kind][count[kind]] = times[0] - times[1];
+				drawing[kind][count[kind]] = times[1];
+				allocated[kind][count[kind]] = times[2];
+				count[kind]++;
+				totalAllocated[events] = times[2];
+				total[events++] = times[0];
+			}
+			System.out.printf("%d events replayed, final state %016x with %d points%n", events, g.hash, g.points);
+			System.out.println("event    count   handling p50/p99/max ms   drawing p50/p99/max ms    allocated p50/p99/max bytes");
+			for (int k = 0; k < KINDS.length; k++)
+				if (count[k] > 0)
+					System.out.printf("%-6s %7d   %s   %s   %s%n", KINDS[k], count[k], percentiles(handling[k], count[k], 1e6),
+							percentiles(drawing[k], count[k], 1e6), percentiles(allocated[k], count[k], 1));
+			if (events == 0)
+				return;
+			System.out.printf("all    %7d   total %s   %s%n", events, percentiles(total, events, 1e6),
+					percentiles(totalAllocated, events, 1));
+			double p99 = total[Math.min(events - 1, (int)(events * 0.99))] / 1e6;
+			if (limitMillis >= 0 && p99 > limitMillis)
+				throw new IllegalStateException(String.format("p99 latency of %.2f ms exceeds %.2f ms", p99, limitMillis));
+			long median = totalAllocated[events / 2];
+			if (limitBytes >= 0 && median > limitBytes)
+				throw new IllegalStateException("Median allocation of " + median + " bytes per event exceeds " + limitBytes);
+		}
+
+		// Creates the game a recording starts with, at the menu of a new game
+		private static Game start(String[] header) throws Exception {
+			Game[] game = new Game[1];
+			SwingUtilities.invokeAndWait(() -> {
+				game[0] = new Game(Long.parseLong(header[1]), false);
+				game[0].display.setSize(Integer.parseInt(header[2]), Integer.parseInt(header[3]));
+			});
+			return game[0];
+		}
+
+		// The game's listeners in the order of KINDS; fetched once, as every call copies the listeners
+		private static EventListener[][] listeners(Game g) {
+			JLabel d = g.display;
+			return new EventListener[][] { d.getKeyListeners(), d.getMouseListeners(), d.getMouseMotionListeners(),
+					d.getMouseWheelListeners(), d.getComponentListeners() };
+		}
+
+		// Sorts the values and formats their median, 99th percentile and maximum in the given unit
+		private static String percentiles(long[] values, int n, double unit) {
+			Arrays.sort(values, 0, n);
+			return String.format(unit == 1 ? "%7.0f %7.0f %7.0f" : "%7.2f %7.2f %7.2f", values[n / 2] / unit,
+					values[Math.min(n - 1, (int)(n * 0.99))] / unit, values[n - 1] / unit);
+		}
+
+		// Creates the event from a line of the recording, before it is measured
+		private static AWTEvent event(Game g, String[] e) {
+			JLabel d = g.display;
+			long when = System.currentTimeMillis();
+			switch (e[1]) {
+				case "key":
+					return new KeyEvent(d, KeyEvent.KEY_PRESSED, when, Integer.parseInt(e[4]),
+							Integer.parseInt(e[2]), (char)Integer.parseInt(e[3]));
+				case "press":
+					return new MouseEvent(d, MouseEvent.MOUSE_PRESSED, when, Integer.parseInt(e[6]),
+							Integer.parseInt(e[2]), Integer.parseInt(e[3]), Integer.parseInt(e[5]), false, Integer.parseInt(e[4]));
+				case "move":
+					return new MouseEvent(d, MouseEvent.MOUSE_MOVED, when, Integer.parseInt(e[4]),
+							Integer.parseInt(e[2]), Integer.parseInt(e[3]), 0, false, MouseEvent.NOBUTTON);
+				case "wheel":
+					return new MouseWheelEvent(d, MouseEvent.MOUSE_WHEEL, when, Integer.parseInt(e[5]),
+							Integer.parseInt(e[2]), Integer.parseInt(e[3]), 0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 3,
+							Integer.parseInt(e[4]));
+				default:
+					return new ComponentEvent(d, ComponentEvent.COMPONENT_RESIZED);
+			}
+		}
+
+		// Passes the event straight to the game's listeners, as a component without a window gets no input
+		private static void dispatch(Game g, AWTEvent e, EventListener[] listeners, String[] line) {
+			JLabel d = g.display;
+			switch (e.getID()) {
+				case KeyEvent.KEY_PRESSED:
+					for (EventListener l : listeners)
+						((KeyListener)l).keyPressed((KeyEvent)e);
+					break;
+				case MouseEvent.MOUSE_PRESSED:
+					for (EventListener l : listeners)
+						((MouseListener)l).mousePressed((MouseEvent)e);
+					break;
+				case MouseEvent.MOUSE_MOVED:
+					for (EventListener l : listeners)
+						((MouseMotionListener)l).mouseMoved((MouseEvent)e);
+					break;
+				case MouseEvent.MOUSE_WHEEL:
+					for (EventListener l : listeners)
+						((MouseWheelListener)l).mouseWheelMoved((MouseWheelEvent)e);
+					break;
+				default:
+					// Resize without listeners, as the component would otherwise queue its own event
+					for (EventListener l : listeners)
+						d.removeComponentListener((ComponentListener)l);
+					d.setSize(Integer.parseInt(line[2]), Integer.parseInt(line[3]));
+					for (EventListener l : listeners) {
+						d.addComponentListener((ComponentListener)l);
+						((ComponentListener)l).componentResized((ComponentEvent)e);
+					}
+					break;
+			}
+		}
+	}
+
 	public static void main(String[] args) {
 		java.util.List<String> lines;
 		try {
@@ -1104,6 +4859,43 @@ public class Game {
 			}
 			highscores[i] = new Highscore(n, p);
 		}
+		try {
+			switch (args.length > 0 ? args[0] : "") {
+				case "server":
+					new Server(args.length > 1 ? Integer.valueOf(args[1]) : Server.DEFAULT_PORT).run();
+					return;
+				case "pack":
+					ImageBundle.pack(new File("data/images"), args.length > 1 ? new File(args[1]) : ImageBundle.FILE);
+					return;
+				case "polyominoes":
+					Polyominoes.main(Arrays.copyOfRange(args, 1, args.length));
+					return;
+				case "sparse":
+					SparseBoard.main(Arrays.copyOfRange(args, 1, args.length));
+					return;
+				case "regions":
+					FreeRegions.main(Arrays.copyOfRange(args, 1, args.length));
+					return;
+				case "record":
+					InputRecording.record(new File(args.length > 1 ? args[1] : "data/input"));
+					return;
+				case "replay":
+					InputRecording.replay(new File(args.length > 1 ? args[1] : "data/input"),
+							args.length > 2 ? Double.valueOf(args[2]) : -1, args.length > 3 ? Long.valueOf(args[3]) : -1,
+							args.length > 4 ? Integer.valueOf(args[4]) : 0);
+					return;
+				case "loadtest":
+					LoadGenerator.run(args.length > 1 ? Integer.valueOf(args[1]) : Server.DEFAULT_PORT,
+							args.length > 2 ? Integer.valueOf(args[2]) : 1000, args.length > 3 ? Integer.valueOf(args[3]) : 200);
+					return;
+				default:
+					break;
+			}
+		}
+		catch (Exception e) {
+			System.out.println("ERROR: " + e);
+			System.exit(1);
+		}
 		new Game();
 	}
 